@@ -16,7 +16,8 @@
 import os
 
 import warnings
-from collections import defaultdict
+from collections import defaultdict, deque
+from functools import partial
 from types import IntType, LongType, UnicodeType, ListType
 from types import BooleanType, TupleType, StringType, StringTypes
 from datetime import datetime
@@ -30,6 +31,12 @@ from omero.cmd import Chgrp2, Delete2, DoAll, SkipHead
 from omero.cmd.graphs import ChildOption
 from omero.api import Save
 from omero.gateway.utils import ServiceOptsDict, GatewayConfig, toBoolean
+from omero.gateway.utils import ChannelStats, IdlePool, PixelsCache
+from omero.gateway.utils import coalesceRanges
+from omero.gateway.rendering import ChannelSettings, getLutRegistry
+from omero.gateway.rendering import ImageEncoder, RenderBuffers
+from omero.gateway.rendering import packedIntBuffer
+from omero.gateway.rendering import renderChannels
 from omero.model.enums import PixelsTypeint8, PixelsTypeuint8, PixelsTypeint16
 from omero.model.enums import PixelsTypeuint16, PixelsTypeint32
 from omero.model.enums import PixelsTypeuint32, PixelsTypefloat
@@ -40,6 +47,7 @@ import Ice
 import Glacier2
 
 import traceback
+import threading
 import time
 import array
 import math
@@ -149,6 +157,39 @@ def fileread_gen(fin, fsize, bufsize):
         fin.close()
 
 
+def windowedCalls(calls, window):
+    """
+    Generator running asynchronous Ice calls with at most window of them in
+    flight at any time, yielding their results in the order of calls.
+
+    :type calls: iterable
+    :param calls: (key, begin, end) tuples where begin() starts the call,
+                  e.g. a partial of a begin_* proxy method, and
+                  end(asyncResult) returns its result
+    :type window: int
+    :param window: maximum number of calls in flight
+    :rtype: generator
+    :return: generator of (key, result) tuples
+    """
+    pending = deque()
+    try:
+        for key, begin, end in calls:
+            pending.append((key, end, begin()))
+            if len(pending) >= window:
+                key, end, result = pending.popleft()
+                yield key, end(result)
+        while pending:
+            key, end, result = pending.popleft()
+            yield key, end(result)
+    finally:
+        # Don't let the caller close a service under running calls
+        for key, end, result in pending:
+            try:
+                result.waitForCompleted()
+            except Exception:
+                logger.debug("Ignoring outstanding call", exc_info=True)
+
+
 def getAnnotationLinkTableName(objecttype):
     """
     Get the name of the *AnnotationLink table
@@ -1550,6 +1591,12 @@ class _BlitzGateway (object):
         self._defaultOmeroGroup = None
         self._defaultOmeroUser = None
         self._maxPlaneSize = None
+        self._pixelsCache = None
+        self._thumbnailCache = None
+        self._localPixelsDir = None
+        self._rePool = None
+        # Compression level of new rendering engines, see _prepareRE()
+        self._reCompressionLevel = None
 
         self._connected = False
         self._user = None
@@ -1676,6 +1723,163 @@ class _BlitzGateway (object):
                 int(c.getConfigValue('omero.pixeldata.max_plane_height')))
         return self._maxPlaneSize
 
+    def enablePixelsCache(self, maxBytes=64*1024*1024):
+        """
+        Enables caching, on this connection, of the tiles and planes loaded
+        with :meth:`PixelsWrapper.getTiles` and related methods. Entries for
+        a set of pixels are dropped when it is written to through
+        :meth:`createRawPixelsStore`.
+
+        :param maxBytes:    Maximum size of the pixel data held in the cache
+        :return:            The cache
+        :rtype:             :class:`omero.gateway.utils.PixelsCache`
+        """
+        self._pixelsCache = PixelsCache(maxBytes)
+        return self._pixelsCache
+
+    def disablePixelsCache(self):
+        """
+        Disables and empties the pixels cache enabled with
+        :meth:`enablePixelsCache`
+        """
+        self._pixelsCache = None
+
+    def getPixelsCache(self):
+        """
+        Returns the pixels cache of this connection, or None if it is not
+        enabled.
+
+        :rtype:     :class:`omero.gateway.utils.PixelsCache`
+        """
+        return self._pixelsCache
+
+    def enableThumbnailCache(self, maxBytes=16*1024*1024):
+        """
+        Enables an in-memory tier, on this connection, in front of the
+        thumbnails read from the server by :meth:`getThumbnailSet` and
+        :meth:`iterThumbnailSet`. Thumbnails are keyed by pixels ID, size
+        and version of the rendering settings, so that a thumbnail is not
+        served once its settings have changed. The entries of an Image are
+        also dropped when its settings are saved through this connection.
+
+        :param maxBytes:    Maximum size of the JPEG data held in the cache
+        :return:            The cache, see its getStats() for the hit ratio
+                            and memory used
+        :rtype:             :class:`omero.gateway.utils.PixelsCache`
+        """
+        self._thumbnailCache = PixelsCache(maxBytes)
+        return self._thumbnailCache
+
+    def disableThumbnailCache(self):
+        """
+        Disables and empties the thumbnail cache enabled with
+        :meth:`enableThumbnailCache`
+        """
+        self._thumbnailCache = None
+
+    def getThumbnailCache(self):
+        """
+        Returns the thumbnail cache of this connection, or None if it is
+        not enabled.
+
+        :rtype:     :class:`omero.gateway.utils.PixelsCache`
+        """
+        return self._thumbnailCache
+
+    def _invalidateThumbnails(self, imageIds=None, pixelsIds=None):
+        """
+        Drops the cached thumbnails of the given Images or Pixels, after
+        their rendering settings have changed.
+        """
+        cache = self._thumbnailCache
+        if cache is None:
+            return
+        pixelsIds = list(pixelsIds or [])
+        if imageIds:
+            ctx = self.SERVICE_OPTS.copy()
+            ctx.setOmeroGroup(-1)
+            pixelsIds.extend(self._getPixelsImageIds(list(imageIds), ctx))
+        for pid in pixelsIds:
+            cache.invalidate(pid)
+
+    def enableRenderingEnginePool(self, maxIdle=4):
+        """
+        Enables reuse, on this connection, of the rendering engines of the
+        images which are done with them. A pooled engine keeps its buffers
+        and caches on the server, and the scratch buffers of
+        :meth:`ImageWrapper.renderLocalPackedInt`, and is pointed at the
+        pixels of the next image opened instead of creating a new engine,
+        with the compression level of a new engine. Engines beyond maxIdle
+        are closed, as are the idle engines when the pool is disabled or the
+        connection closed.
+
+        :param maxIdle:     Maximum number of idle engines kept
+        :return:            The pool
+        :rtype:             :class:`omero.gateway.utils.IdlePool`
+        """
+        self.disableRenderingEnginePool()
+        self._rePool = IdlePool(maxIdle, lambda entry: entry[0].close())
+        return self._rePool
+
+    def disableRenderingEnginePool(self):
+        """
+        Disables the pool enabled with :meth:`enableRenderingEnginePool`,
+        closing its idle engines.
+        """
+        pool, self._rePool = self._rePool, None
+        if pool is not None:
+            pool.clear()
+
+    def getRenderingEnginePool(self):
+        """
+        Returns the rendering engine pool of this connection, or None if it
+        is not enabled.
+
+        :rtype:     :class:`omero.gateway.utils.IdlePool`
+        """
+        return self._rePool
+
+    def enableLocalPixels(self, dataDir=None):
+        """
+        Enables reading pixels straight from the files of the binary
+        repository, with read-only numpy memory maps, when this client runs
+        on a host which mounts it, e.g. a batch worker sharing the server's
+        filesystem. :meth:`PixelsWrapper.getTiles` and related methods then
+        only ask the server whether the user can read the pixels and fall
+        back to the RawPixelsStore for the pixels which have no plain file
+        there, such as pyramids and images imported in filesets.
+
+        :param dataDir:     Path of omero.data.dir on this host. Default is
+                            the server's value, which only administrators
+                            can read
+        :return:            True if the repository was found
+        """
+        if dataDir is None:
+            try:
+                dataDir = self.getConfigService().getConfigValue(
+                    'omero.data.dir')
+            except Exception:
+                logger.debug("Failed to read omero.data.dir", exc_info=True)
+                return False
+        if not dataDir or not os.path.isdir(os.path.join(dataDir, 'Pixels')):
+            logger.debug("No binary repository at %s" % dataDir)
+            return False
+        self._localPixelsDir = dataDir
+        return True
+
+    def disableLocalPixels(self):
+        """
+        Disables the local reads enabled with :meth:`enableLocalPixels`
+        """
+        self._localPixelsDir = None
+
+    def getLocalPixelsDir(self):
+        """
+        Returns the path of the binary repository read locally, or None if
+        :meth:`enableLocalPixels` is not in use.
+        """
+        return self._localPixelsDir
+
     def getClientSettings(self):
         """
         Returns all client properties matching omero.client.*
@@ -1906,6 +2110,7 @@ class _BlitzGateway (object):
                       DeprecationWarning)
         self._connected = False
         oldC = self.c
+        self.disableRenderingEnginePool()
         if oldC is not None:
             try:
                 if softclose:
@@ -1936,6 +2141,7 @@ class _BlitzGateway (object):
         """
         self._connected = False
         oldC = self.c
+        self.disableRenderingEnginePool()
         for proxy in self._proxies.values():
             proxy.close()
         if oldC is not None:
@@ -1981,7 +2187,7 @@ class _BlitzGateway (object):
                 self, 'getPixelsService')
             self._proxies['projection'] = ProxyObjectWrapper(
                 self, 'getProjectionService')
-            self._proxies['rawpixels'] = ProxyObjectWrapper(
+            self._proxies['rawpixels'] = RawPixelsStoreProxyWrapper(
                 self, 'createRawPixelsStore')
             self._proxies['rendering'] = ProxyObjectWrapper(
                 self, 'createRenderingEngine')
@@ -3719,16 +3925,10 @@ class _BlitzGateway (object):
         """
         queryService = self.getQueryService()
         pixelsService = self.getPixelsService()
-        # Make sure we don't get an existing rpStore
-        rawPixelsStore = self.c.sf.createRawPixelsStore()
-        containerService = self.getContainerService()
         updateService = self.getUpdateService()
 
-        import numpy
-
         def createImage(firstPlane, channelList):
             """ Create our new Image once we have the first plane in hand """
-            convertToType = None
             sizeY, sizeX = firstPlane.shape
             if sourceImageId is not None:
                 if channelList is None:
@@ -3736,20 +3936,9 @@ class _BlitzGateway (object):
                 iId = pixelsService.copyAndResizeImage(
                     sourceImageId, rint(sizeX), rint(sizeY), rint(sizeZ),
                     rint(sizeT), channelList, None, False, self.SERVICE_OPTS)
-                # need to ensure that the plane dtype matches the pixels type
-                # of our new image
+                # The planes are converted to the pixels type of our new
+                # image by the PixelsWriter
                 img = self.getObject("Image", iId.getValue())
-                newPtype = img.getPrimaryPixels().getPixelsType().getValue()
-                omeroToNumpy = {PixelsTypeint8: 'int8',
-                                PixelsTypeuint8: 'uint8',
-                                PixelsTypeint16: 'int16',
-                                PixelsTypeuint16: 'uint16',
-                                PixelsTypeint32: 'int32',
-                                PixelsTypeuint32: 'uint32',
-                                PixelsTypefloat: 'float32',
-                                PixelsTypedouble: 'double'}
-                if omeroToNumpy[newPtype] != firstPlane.dtype.name:
-                    convertToType = getattr(numpy, omeroToNumpy[newPtype])
                 img._obj.setName(rstring(imageName))
                 img._obj.setSeries(rint(0))
                 updateService.saveObject(img._obj, self.SERVICE_OPTS)
@@ -3785,22 +3974,11 @@ class _BlitzGateway (object):
                     imageName, description, self.SERVICE_OPTS)
 
             imageId = iId.getValue()
-            return (containerService.getImages(
-                "Image", [imageId], None, self.SERVICE_OPTS)[0], convertToType)
-
-        def uploadPlane(plane, z, c, t, convertToType):
-            # if we're given a numpy dtype, need to convert plane to that dtype
-            if convertToType is not None:
-                p = numpy.zeros(plane.shape, dtype=convertToType)
-                p += plane
-                plane = p
-            byteSwappedPlane = plane.byteswap()
-            convertedPlane = byteSwappedPlane.tostring()
-            rawPixelsStore.setPlane(convertedPlane, z, c, t, self.SERVICE_OPTS)
+            return self.getObject("Image", imageId,
+                                  opts={'load_pixels': True})
 
         image = None
-        dtype = None
-        channelsMinMax = []
+        writer = None
         exc = None
         try:
             for theZ in range(sizeZ):
@@ -3809,30 +3987,18 @@ class _BlitzGateway (object):
                         plane = zctPlanes.next()
                         # use the first plane to create image.
                         if image is None:
-                            image, dtype = createImage(plane, channelList)
-                            pixelsId = image.getPrimaryPixels(
-                                ).getId().getValue()
-                            rawPixelsStore.setPixelsId(
-                                pixelsId, True, self.SERVICE_OPTS)
-                        uploadPlane(plane, theZ, theC, theT, dtype)
-                        # init or update min and max for this channel
-                        minValue = plane.min()
-                        maxValue = plane.max()
-                        # first plane of each channel
-                        if len(channelsMinMax) < (theC + 1):
-                            channelsMinMax.append([minValue, maxValue])
-                        else:
-                            channelsMinMax[theC][0] = min(
-                                channelsMinMax[theC][0], minValue)
-                            channelsMinMax[theC][1] = max(
-                                channelsMinMax[theC][1], maxValue)
+                            image = createImage(plane, channelList)
+                            writer = PixelsWriter(image.getPrimaryPixels())
+                        writer.setPlane(plane, theZ, theC, theT)
         except Exception, e:
             logger.error(
                 "Failed to setPlane() on rawPixelsStore while creating Image",
                 exc_info=True)
             exc = e
         try:
-            rawPixelsStore.close(self.SERVICE_OPTS)
+            # Waits for the planes and saves the min and max of each channel
+            if writer is not None:
+                writer.close()
         except Exception, e:
             logger.error("Failed to close rawPixelsStore", exc_info=True)
             if exc is None:
@@ -3846,20 +4012,19 @@ class _BlitzGateway (object):
         except StopIteration:
             pass
 
-        for theC, mm in enumerate(channelsMinMax):
-            pixelsService.setChannelGlobalMinMax(
-                pixelsId, theC, float(mm[0]), float(mm[1]), self.SERVICE_OPTS)
-            # resetRenderingSettings(
-            #     renderingEngine, pixelsId, theC, mm[0], mm[1])
-
         # put the image in dataset, if specified.
         if dataset:
             link = omero.model.DatasetImageLinkI()
             link.parent = omero.model.DatasetI(dataset.getId(), False)
-            link.child = omero.model.ImageI(image.id.val, False)
+            link.child = omero.model.ImageI(image.getId(), False)
             updateService.saveObject(link, self.SERVICE_OPTS)
 
-        return ImageWrapper(self, image)
+        return image
+
+    RENDERING_SETTINGS_SET_METHODS = ('applySettingsToSet',
+                                      'resetDefaultsInSet',
+                                      'resetMinMaxInSet',
+                                      'setOriginalSettingsInSet')
 
     def applySettingsToSet(self, fromid, to_type, toids):
         """
@@ -3891,8 +4056,109 @@ class _BlitzGateway (object):
                 frompid, to_type, list(toids),  ctx)
             if fromid in json_data[True]:
                 del json_data[True][json_data[True].index(fromid)]
+            self._invalidateThumbnails(imageIds=json_data[True])
         return json_data
 
+    # Queries of the IDs of the Images in a container, see _getSetImageIds()
+    SET_IMAGE_QUERIES = {
+        'Dataset': "select l.child.id from DatasetImageLink l "
+                   "where l.parent.id in (:ids)",
+        'Project': "select dil.child.id from DatasetImageLink dil, "
+                   "ProjectDatasetLink pdl where dil.parent.id = pdl.child.id "
+                   "and pdl.parent.id in (:ids)",
+        'Plate': "select ws.image.id from WellSample ws "
+                 "where ws.well.plate.id in (:ids)",
+        'PlateAcquisition': "select ws.image.id from WellSample ws "
+                            "where ws.plateAcquisition.id in (:ids)",
+        'Screen': "select ws.image.id from WellSample ws, ScreenPlateLink l "
+                  "where ws.well.plate.id = l.child.id "
+                  "and l.parent.id in (:ids)",
+        'Pixels': "select p.image.id from Pixels p where p.id in (:ids)"}
+
+    def _getSetImageIds(self, to_type, toids):
+        """
+        Returns the sorted IDs of the Images in the given containers.
+        """
+        if to_type == 'Image':
+            return sorted(set(long(i) for i in toids))
+        query = self.SET_IMAGE_QUERIES.get(to_type)
+        if query is None:
+            raise AttributeError(
+                "Rendering settings can't be set in a %s" % to_type)
+        params = omero.sys.ParametersI()
+        params.addIds(toids)
+        ctx = self.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(-1)
+        rows = self.getQueryService().projection(query, params, ctx)
+        return sorted(set(row[0].val for row in rows))
+
+    def iterRenderingSettingsInSet(self, method, to_type, toids, fromid=None,
+                                   chunkSize=500, window=4):
+        """
+        Runs one of the IRenderingSettings methods applySettingsToSet,
+        resetDefaultsInSet, resetMinMaxInSet or setOriginalSettingsInSet on
+        the Images of a set in chunks, so that a set of thousands of Images
+        is done with many short calls rather than one which times out.
+        Up to window chunks are processed at the same time by the server,
+        with asynchronous calls.
+
+        Yields the progress after each chunk, in the order of the Images,
+        as (done, total, result) where result is the value returned by the
+        method for the chunk: for applySettingsToSet a dict of
+        { True:[ids], False:[ids] }, otherwise a list of the Image IDs
+        done.
+
+        :param method:      Name of the IRenderingSettings method
+        :param to_type:     toids refers to Images by default, but can refer
+                            to Project, Dataset, Image, Plate, Screen,
+                            Acquisition or Pixels
+        :param toids:       IDs of the objects to process
+        :param fromid:      ID of the Image to copy the settings from, for
+                            applySettingsToSet
+        :param chunkSize:   Number of Images per call
+        :param window:      Number of calls in flight
+        :rtype:             generator
+        """
+        if method not in self.RENDERING_SETTINGS_SET_METHODS:
+            raise AttributeError(
+                "%s is not one of %s" % (
+                    method, ", ".join(self.RENDERING_SETTINGS_SET_METHODS)))
+        to_type = (to_type or "Image").title()
+        if to_type in ('Acquisition', 'Plateacquisition'):
+            to_type = 'PlateAcquisition'
+        imageIds = self._getSetImageIds(to_type, toids)
+        rss = self.getRenderingSettingsService()
+        ctx = self.SERVICE_OPTS.copy()
+        begin = getattr(rss, 'begin_' + method)
+        end = getattr(rss, 'end_' + method)
+        if method == 'applySettingsToSet':
+            fromimg = self.getObject("Image", fromid)
+            ctx.setOmeroGroup(fromimg.getDetails().getGroup().getId())
+            begin = partial(begin, fromimg.getPixelsId())
+        chunkSize = max(1, chunkSize)
+        chunks = [imageIds[i:i + chunkSize]
+                  for i in range(0, len(imageIds), chunkSize)]
+        # The context must be passed by name, after the operation's
+        # arguments begin_* takes the callbacks
+        calls = ((len(chunk), partial(begin, 'Image', chunk, _ctx=ctx),
+                  end) for chunk in chunks)
+        done = 0
+        results = windowedCalls(calls, max(1, window))
+        try:
+            for count, result in results:
+                done += count
+                if method == 'applySettingsToSet':
+                    if fromid in result[True]:
+                        result[True].remove(fromid)
+                    self._invalidateThumbnails(imageIds=result[True])
+                else:
+                    self._invalidateThumbnails(imageIds=result)
+                logger.debug("%s: %s/%s images" % (method, done,
+                                                   len(imageIds)))
+                yield done, len(imageIds), result
+        finally:
+            results.close()
+
     def setChannelNames(self, data_type, ids, nameDict, channelCount=None):
         """
         Sets and saves new names for channels of specified Images.
@@ -4605,53 +4871,190 @@ class _BlitzGateway (object):
             search.close()
         return rv
 
-    def getThumbnailSet(self, image_ids, max_size=64):
+    def getThumbnailSet(self, image_ids, max_size=64, workers=4,
+                        chunkSize=8, byGroup=True):
         """
         Retrieves a number of thumbnails for image sets. If the Thumbnails
         exist in the on-disk cache they will be returned directly,
         otherwise they will be created, for more details
         see ome.api.ThumbnailStore.getThumbnailByLongestSideSet
 
+        The images are split into chunks of chunkSize, requested on up to
+        workers thumbnail stores at the same time, so that the thumbnails
+        which have to be created are spread over the threads of the server.
+        See :meth:`iterThumbnailSet`.
+
         :param image_ids:   A list of image ids
         :param max_size:    The longest side of the image will be used
                             to calculate the size for the smaller side
                             in order to keep the aspect ratio of
                             the original image.
+        :param workers:     Number of thumbnail stores used at once
+        :param chunkSize:   Number of thumbnails per request
+        :param byGroup:     Split the chunks by group, see
+                            :meth:`iterThumbnailSet`
         :return:            dictionary of strings holding a rendered JPEG
                             of the thumbnails.
         """
-        tb = None
         _resp = dict()
         try:
-            ctx = self.SERVICE_OPTS.copy()
-            if ctx.getOmeroGroup() is None:
-                ctx.setOmeroGroup(-1)
-            tb = self.createThumbnailStore()
-            p = omero.sys.ParametersI().addIds(image_ids)
-            sql = """select new map(
-                        i.id as im_id, p.id as pix_id
-                     )
-                     from Pixels as p join p.image as i
-                     where i.id in (:ids) """
-
-            img_pixel_ids = self.getQueryService().projection(
-                sql, p, ctx)
-            _temp = dict()
-            for e in img_pixel_ids:
-                e = unwrap(e)
-                _temp[e[0]['pix_id']] = e[0]['im_id']
-
-            thumbs_map = tb.getThumbnailByLongestSideSet(
-                rint(max_size), list(_temp), ctx)
-            for (pix, thumb) in thumbs_map.items():
-                _resp[_temp[pix]] = thumb
+            for image_id, thumb in self.iterThumbnailSet(
+                    image_ids, max_size, workers, chunkSize, byGroup):
+                _resp[image_id] = thumb
         except Exception:
             logger.error(traceback.format_exc())
-        finally:  # pragma: no cover
-            if tb is not None:
-                tb.close()
         return _resp
 
+    def _getPixelsImageIds(self, image_ids, ctx, groups=None):
+        """
+        Returns a dict of the image ID of the pixels of each image.
+        If a dict is passed as groups, the group ID of the pixels of each
+        image is added to it.
+        """
+        p = omero.sys.ParametersI().addIds(image_ids)
+        sql = """select new map(
+                    i.id as im_id, p.id as pix_id,
+                    i.details.group.id as group_id
+                 )
+                 from Pixels as p join p.image as i
+                 where i.id in (:ids) """
+
+        img_pixel_ids = self.getQueryService().projection(
+            sql, p, ctx)
+        _temp = dict()
+        for e in img_pixel_ids:
+            e = unwrap(e)
+            _temp[e[0]['pix_id']] = e[0]['im_id']
+            if groups is not None:
+                groups[e[0]['pix_id']] = e[0]['group_id']
+        return _temp
+
+    def _getRenderingDefVersions(self, pixelsIds, ctx):
+        """
+        Returns a dict of the version of the rendering settings of each
+        pixels set, as the ID of the latest update event of its rendering
+        definitions. Pixels without rendering settings are left out.
+        """
+        p = omero.sys.ParametersI().addIds(pixelsIds)
+        sql = ("select r.pixels.id, max(r.details.updateEvent.id) "
+               "from RenderingDef r where r.pixels.id in (:ids) "
+               "group by r.pixels.id")
+        rows = self.getQueryService().projection(sql, p, ctx)
+        return dict((row[0].val, row[1].val) for row in rows)
+
+    def iterThumbnailSet(self, image_ids, max_size=64, workers=4,
+                         chunkSize=8, byGroup=True):
+        """
+        Generator of the thumbnails of :meth:`getThumbnailSet`, yielding
+        them as soon as each chunk is ready rather than once all of them are
+        done, so that a grid of thumbnails can be filled progressively.
+        Chunks of chunkSize images are requested asynchronously on up to
+        workers thumbnail stores, each store working on one chunk at a time.
+        Chunks which fail are logged and skipped.
+        If :meth:`enableThumbnailCache` was called, the thumbnails found in
+        the cache are yielded first, without a call to the server.
+
+        When looking across all groups, the groups of the images are
+        found with the pixels in a single query and, if byGroup is True,
+        each chunk only holds images of one group and is requested in the
+        context of that group, so that the server doesn't have to resolve
+        the permissions and settings of the images one by one.
+
+        :param image_ids:   A list of image ids
+        :param max_size:    The longest side of the thumbnails
+        :param workers:     Number of thumbnail stores used at once
+        :param chunkSize:   Number of thumbnails per request
+        :param byGroup:     Split the chunks by group in an all groups
+                            context
+        :return:            Generator of (image ID, JPEG data) tuples, in
+                            the order they are ready
+        """
+        import Queue
+        ctx = self.SERVICE_OPTS.copy()
+        if ctx.getOmeroGroup() is None:
+            ctx.setOmeroGroup(-1)
+        groups = None
+        if byGroup and ctx.getOmeroGroup() in (-1, '-1'):
+            groups = {}
+        _temp = self._getPixelsImageIds(image_ids, ctx, groups)
+        pixelsIds = list(_temp)
+        cache = self._thumbnailCache
+        versions = {}
+        if cache is not None and pixelsIds:
+            versions = self._getRenderingDefVersions(pixelsIds, ctx)
+            missing = []
+            for pix in pixelsIds:
+                thumb = None
+                if pix in versions:
+                    thumb = cache.get(
+                        (pix, 'thumbnail', max_size, versions[pix]))
+                if thumb is None:
+                    missing.append(pix)
+                else:
+                    yield _temp[pix], thumb
+            pixelsIds = missing
+        chunkSize = max(1, chunkSize)
+        chunks = deque()
+        if groups is None:
+            parts = [(ctx, pixelsIds)]
+        else:
+            groupPixels = defaultdict(list)
+            for pix in pixelsIds:
+                groupPixels[groups[pix]].append(pix)
+            parts = []
+            for gid, ids in sorted(groupPixels.items()):
+                gctx = ctx.copy()
+                gctx.setOmeroGroup(gid)
+                parts.append((gctx, ids))
+        for partCtx, ids in parts:
+            chunks.extend((partCtx, ids[i:i + chunkSize])
+                          for i in range(0, len(ids), chunkSize))
+        done = Queue.Queue()
+        stores = []
+        running = [0]
+
+        def start(tb):
+            chunkCtx, chunk = chunks.popleft()
+
+            def response(thumbs_map):
+                done.put((tb, chunk, thumbs_map, None))
+
+            def exception(e):
+                done.put((tb, chunk, None, e))
+            tb.begin_getThumbnailByLongestSideSet(
+                rint(max_size), chunk, _response=response, _ex=exception,
+                _ctx=chunkCtx)
+            running[0] += 1
+
+        try:
+            while chunks and len(stores) < max(1, workers):
+                tb = self._proxies['thumbs'].clone()
+                stores.append(tb)
+                start(tb)
+            while running[0]:
+                tb, chunk, thumbs_map, exc = done.get()
+                running[0] -= 1
+                if chunks:
+                    start(tb)
+                if exc is not None:
+                    logger.error("Failed to get thumbnails of pixels %s: %s"
+                                 % (chunk, exc))
+                    continue
+                for (pix, thumb) in thumbs_map.items():
+                    # Pixels without settings get new ones with their
+                    # thumbnail, of a version not known here
+                    if cache is not None and pix in versions and thumb:
+                        cache.put((pix, 'thumbnail', max_size, versions[pix]),
+                                  thumb)
+                    yield _temp[pix], thumb
+        finally:
+            # Don't close the stores under running calls
+            while running[0]:
+                done.get()
+                running[0] -= 1
+            for tb in stores:
+                tb.close()
+
 
 class OmeroGatewaySafeCallWrapper(object):  # pragma: no cover
     """
@@ -4951,6 +5354,59 @@ class ProxyObjectWrapper (object):
         return rv
 
 
+class RawPixelsStoreProxyWrapper (ProxyObjectWrapper):
+    """
+    Wrapper for the RawPixelsStore which drops the entries of the pixels
+    set it writes to from the connection's pixels cache, see
+    :meth:`BlitzGateway.enablePixelsCache`. For asynchronous writes, the
+    entries are dropped both when the write is started and when it is
+    ended, so that tiles read and cached while the write was in flight
+    are not served afterwards.
+    """
+
+    WRITE_METHODS = ('setPlane', 'setRegion', 'setRow', 'setStack',
+                     'setTile', 'setTimepoint')
+
+    def __init__(self, conn, func_str, cast_to=None, service_name=None):
+        super(RawPixelsStoreProxyWrapper, self).__init__(
+            conn, func_str, cast_to, service_name)
+        self._pixelsId = None
+
+    def clone(self):
+        """
+        Creates and returns a new :class:`RawPixelsStoreProxyWrapper` with
+        the same connection and service creation method name as this one.
+
+        :return:    Cloned service wrapper
+        :rtype:     :class:`RawPixelsStoreProxyWrapper`
+        """
+
+        return RawPixelsStoreProxyWrapper(
+            self._conn, self._func_str, self._cast_to, self._service_name)
+
+    def __getattr__(self, attr):
+        rv = super(RawPixelsStoreProxyWrapper, self).__getattr__(attr)
+        if attr == 'setPixelsId':
+            def wrapped(pixelsId, *args, **kwargs):
+                self._pixelsId = unwrap(pixelsId)
+                return rv(pixelsId, *args, **kwargs)
+            return wrapped
+        name = attr
+        for prefix in ('begin_', 'end_'):
+            if attr.startswith(prefix):
+                name = attr[len(prefix):]
+        if name in self.WRITE_METHODS:
+            def wrapped(*args, **kwargs):
+                try:
+                    return rv(*args, **kwargs)
+                finally:
+                    cache = self._conn.getPixelsCache()
+                    if cache is not None and self._pixelsId is not None:
+                        cache.invalidate(self._pixelsId)
+            return wrapped
+        return rv
+
+
 class AnnotationWrapper (BlitzObjectWrapper):
     """
     omero_model_AnnotationI class wrapper extends BlitzObjectWrapper.
@@ -7206,6 +7662,24 @@ class _PixelsWrapper (BlitzObjectWrapper):
 
     OMERO_CLASS = 'Pixels'
 
+    # Largest single getRegion() issued when merging ranges in getRegions()
+    MAX_REGION_SIZE = 16 * 1024 * 1024
+
+    PIXEL_DTYPES = {PixelsTypeint8: 'int8',
+                    PixelsTypeuint8: 'uint8',
+                    PixelsTypeint16: 'int16',
+                    PixelsTypeuint16: 'uint16',
+                    PixelsTypeint32: 'int32',
+                    PixelsTypeuint32: 'uint32',
+                    PixelsTypefloat: 'float32',
+                    PixelsTypedouble: 'float64',
+                    PixelsTypecomplex: 'complex64'}
+
+    # Memory map of the local pixels file, see _getLocalPixels()
+    _localPixels = None
+    # Local pixels directory in which the pixels were found not readable
+    _noLocalPixelsDir = None
+
     def _prepareRawPixelsStore(self):
         """
         Creates RawPixelsStore and sets the id etc
@@ -7263,19 +7737,22 @@ class _PixelsWrapper (BlitzObjectWrapper):
         for pi in result:
             yield PlaneInfoWrapper(self._conn, pi)
 
-    def getPlanes(self, zctList):
+    def getPlanes(self, zctList, window=1, level=None):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of Z, C, T indexes.
 
         :param zctList:     A list of indexes: [(z,c,t), ]
+        :param window:      Number of planes to request ahead of the one
+                            being returned, see :meth:`getTiles`
+        :param level:       Resolution level to read from, for pyramids
         """
 
         zctTileList = []
         for zct in zctList:
             z, c, t = zct
             zctTileList.append((z, c, t, None))
-        return self.getTiles(zctTileList)
+        return self.getTiles(zctTileList, window=window, level=level)
 
     def getPlane(self, theZ=0, theC=0, theT=0):
         """
@@ -7287,59 +7764,213 @@ class _PixelsWrapper (BlitzObjectWrapper):
         planeList = list(self.getPlanes([(theZ, theC, theT)]))
         return planeList[0]
 
-    def getTiles(self, zctTileList):
+    def _getLocalPixels(self):
+        """
+        Returns a read-only memory map of shape (sizeT, sizeC, sizeZ, sizeY,
+        sizeX) onto the pixels file of the binary repository, if the
+        connection reads pixels locally, see
+        :meth:`BlitzGateway.enableLocalPixels`, the file is what the server
+        reads the pixels from and the server lets the user read them.
+        Returns None otherwise. Both answers are kept by this wrapper, so
+        that the file and the server are only checked once.
+        """
+        dataDir = self._conn.getLocalPixelsDir()
+        if dataDir is None or dataDir == self._noLocalPixelsDir:
+            return None
+        if self._localPixels is not None:
+            return self._localPixels
+        self._localPixels = self._openLocalPixels(dataDir)
+        if self._localPixels is None:
+            self._noLocalPixelsDir = dataDir
+        return self._localPixels
+
+    def _openLocalPixels(self, dataDir):
+        """
+        Returns the memory map of :meth:`_getLocalPixels` for the pixels
+        file in dataDir, or None if it can't be used.
+        """
+        import numpy
+        from omero.util import long_to_path
+        path = long_to_path(self.getId(), os.path.join(dataDir, 'Pixels'))
+        dtype = self._getRawDtype()
+        shape = (self.getSizeT(), self.getSizeC(), self.getSizeZ(),
+                 self.getSizeY(), self.getSizeX())
+        size = dtype.itemsize
+        for n in shape:
+            size *= n
+        # Pyramids and fileset images are not read from a plain file
+        if (not os.path.isfile(path) or os.path.getsize(path) != size or
+                os.path.exists(path + '_pyramid')):
+            return None
+        try:
+            # Let the server check that the user can read these pixels
+            rawPixelsStore = self._prepareRawPixelsStore()
+            try:
+                if rawPixelsStore.requiresPixelsPyramid():
+                    return None
+            finally:
+                rawPixelsStore.close()
+            return numpy.memmap(path, dtype=dtype, mode='r', shape=shape)
+        except Exception:
+            logger.debug("Not reading pixels %d locally" % self.getId(),
+                         exc_info=True)
+            return None
+
+    def _getLocalTiles(self, localPixels, zctTileList, copy=True):
+        """
+        Generator of the numpy 2D tiles of zctTileList read from the memory
+        map returned by :meth:`_getLocalPixels`, see :meth:`getTiles`.
+        """
+        for z, c, t, tile in zctTileList:
+            plane = localPixels[t, c, z]
+            if tile is not None:
+                x, y, width, height = tile
+                plane = plane[y:y + height, x:x + width]
+                if plane.shape != (height, width):
+                    raise omero.ApiUsageException(
+                        None, None, "Tile %s is outside the plane" % (tile,))
+            if copy:
+                plane = plane.astype(plane.dtype.newbyteorder('='))
+            yield plane
+
+    def _getRawTiles(self, rawPixelsStore, zctTileList):
+        """
+        Generator of (zctTile, bytes) fetching each tile with a synchronous
+        call to the rawPixelsStore.
+        """
+        for zctTile in zctTileList:
+            z, c, t, tile = zctTile
+            if tile is None:
+                rawPlane = rawPixelsStore.getPlane(z, c, t)
+            else:
+                x, y, width, height = tile
+                rawPlane = rawPixelsStore.getTile(
+                    z, c, t, x, y, width, height)
+            yield zctTile, rawPlane
+
+    def _getRawTilesAsync(self, rawPixelsStore, zctTileList, window):
+        """
+        Generator of (zctTile, bytes) keeping up to window asynchronous
+        calls in flight on the rawPixelsStore. Tiles are yielded in the
+        order they were requested.
+        """
+        def calls():
+            for zctTile in zctTileList:
+                z, c, t, tile = zctTile
+                if tile is None:
+                    yield (zctTile,
+                           partial(rawPixelsStore.begin_getPlane, z, c, t),
+                           rawPixelsStore.end_getPlane)
+                else:
+                    x, y, width, height = tile
+                    yield (zctTile,
+                           partial(rawPixelsStore.begin_getTile,
+                                   z, c, t, x, y, width, height),
+                           rawPixelsStore.end_getTile)
+        return windowedCalls(calls(), window)
+
+    def _getCacheKey(self, level, zctTile):
+        """
+        Returns the key of a tile in the connection's pixels cache.
+        """
+        z, c, t, tile = zctTile
+        return (self.getId(), level, z, c, t, tile and tuple(tile))
+
+    def getTiles(self, zctTileList, window=1, copy=True, level=None):
         """
         Returns generator of numpy 2D planes from this set of pixels for a
         list of (Z, C, T, tile) where tile is (x, y, width, height) or None if
         you want the whole plane.
 
+        If window is greater than 1, up to that many getPlane() or getTile()
+        calls are kept in flight asynchronously so that the network latency
+        of the following tiles is hidden while the current one is being
+        converted and consumed. At most window raw tiles are held in memory.
+
+        By default each tile is decoded into a new native-endian array. If
+        copy is False, the returned arrays are read-only big-endian views
+        onto the bytes received from the server, so that no pixel is copied.
+
+        If the pixels cache is enabled on the connection, see
+        :meth:`BlitzGateway.enablePixelsCache`, tiles found there are not
+        requested from the server and the others are added to it.
+
         :param zctrList:     A list of indexes: [(z,c,t, region), ]
+        :param window:       Number of tiles to request ahead, 1 for
+                             one synchronous call per tile
+        :param copy:         If False, yield read-only views of the raw data
+        :param level:        Resolution level to read from, for pyramids.
+                             Default is the full resolution
         """
+        return self._readTiles(zctTileList, window, copy, level)
+
+    def _readTiles(self, zctTileList, window=1, copy=True, level=None,
+                   useCache=True):
+        """
+        Generator of the tiles of :meth:`getTiles`. If useCache is False,
+        the pixels cache of the connection is neither looked up nor filled,
+        e.g. for planes which are only read once to work something out.
+        """
+        if level is None:
+            localPixels = self._getLocalPixels()
+            if localPixels is not None:
+                for plane in self._getLocalTiles(
+                        localPixels, zctTileList, copy):
+                    yield plane
+                return
 
-        import numpy
-        from struct import unpack
-
-        pixelTypes = {PixelsTypeint8: ['b', numpy.int8],
-                      PixelsTypeuint8: ['B', numpy.uint8],
-                      PixelsTypeint16: ['h', numpy.int16],
-                      PixelsTypeuint16: ['H', numpy.uint16],
-                      PixelsTypeint32: ['i', numpy.int32],
-                      PixelsTypeuint32: ['I', numpy.uint32],
-                      PixelsTypefloat: ['f', numpy.float32],
-                      PixelsTypedouble: ['d', numpy.float64]}
         rawPixelsStore = None
         sizeX = self.sizeX
         sizeY = self.sizeY
-        pixelType = self.getPixelsType().value
-        numpyType = pixelTypes[pixelType][1]
+        dtype = self._getRawDtype()
+        cache = None
+        if useCache:
+            cache = self._conn.getPixelsCache()
+        rawTiles = None
         exc = None
         try:
-            rawPixelsStore = self._prepareRawPixelsStore()
-            for zctTile in zctTileList:
-                z, c, t, tile = zctTile
+            zctTileList = list(zctTileList)
+            cached = {}
+            if cache is not None:
+                for i, zctTile in enumerate(zctTileList):
+                    rawPlane = cache.get(self._getCacheKey(level, zctTile))
+                    if rawPlane is not None:
+                        cached[i] = rawPlane
+            misses = [zctTile for i, zctTile in enumerate(zctTileList)
+                      if i not in cached]
+            planes = [zctTile for zctTile in zctTileList
+                      if zctTile[3] is None]
+            if misses or (planes and level is not None):
+                rawPixelsStore = self._prepareRawPixelsStore()
+                if level is not None:
+                    rawPixelsStore.setResolutionLevel(level)
+                    sizeX, sizeY = self._getLevelSize(rawPixelsStore, level)
+            if window > 1:
+                rawTiles = self._getRawTilesAsync(
+                    rawPixelsStore, misses, window)
+            else:
+                rawTiles = self._getRawTiles(rawPixelsStore, misses)
+            for i, zctTile in enumerate(zctTileList):
+                if i in cached:
+                    rawPlane = cached.pop(i)
+                else:
+                    zctTile, rawPlane = rawTiles.next()
+                    if cache is not None:
+                        cache.put(self._getCacheKey(level, zctTile), rawPlane)
+                tile = zctTile[3]
                 if tile is None:
-                    rawPlane = rawPixelsStore.getPlane(z, c, t)
-                    planeY = sizeY
-                    planeX = sizeX
+                    shape = (sizeY, sizeX)
                 else:
-                    x, y, width, height = tile
-                    rawPlane = rawPixelsStore.getTile(
-                        z, c, t, x, y, width, height)
-                    planeY = height
-                    planeX = width
-                # +str(sizeX*sizeY)+pythonTypes[pixelType]
-                convertType = '>%d%s' % (
-                    (planeY*planeX), pixelTypes[pixelType][0])
-                convertedPlane = unpack(convertType, rawPlane)
-                remappedPlane = numpy.array(convertedPlane, numpyType)
-                remappedPlane.resize(planeY, planeX)
-                yield remappedPlane
+                    shape = (tile[3], tile[2])
+                yield self._toArray(rawPlane, shape, copy=copy, dtype=dtype)
         except Exception, e:
             logger.error(
                 "Failed to getPlane() or getTile() from rawPixelsStore",
                 exc_info=True)
             exc = e
         try:
+            if rawTiles is not None:
+                rawTiles.close()
             if rawPixelsStore is not None:
                 rawPixelsStore.close()
         except Exception, e:
@@ -7349,6 +7980,56 @@ class _PixelsWrapper (BlitzObjectWrapper):
         if exc is not None:
             raise exc
 
+    def getRegions(self, offsets, sizes, maxGap=0, window=1):
+        """
+        Reads several ranges of the raw pixel data, as getRegion() does
+        for one, with as few requests as possible. The ranges are sorted
+        and those which overlap, touch or are at most maxGap bytes apart are
+        read together with a single getRegion() call. The results are
+        returned in the order of offsets.
+
+        :param offsets:     Byte offsets of the ranges in the pixels data,
+                            e.g. from getPlaneOffset()
+        :param sizes:       Size in bytes of each range
+        :param maxGap:      Number of unwanted bytes worth reading between
+                            two ranges to save a request
+        :param window:      Number of getRegion() calls to keep in flight,
+                            see :meth:`getTiles`
+        :return:            List of byte strings
+        """
+        if len(offsets) != len(sizes):
+            raise ValueError("offsets and sizes must be the same length")
+        rv = [None] * len(offsets)
+        reads = coalesceRanges(offsets, sizes, maxGap=maxGap,
+                               maxSize=self.MAX_REGION_SIZE)
+        rawPixelsStore = self._prepareRawPixelsStore()
+        if window > 1:
+            calls = ((parts,
+                      partial(rawPixelsStore.begin_getRegion, size, offset),
+                      rawPixelsStore.end_getRegion)
+                     for offset, size, parts in reads)
+            regions = windowedCalls(calls, window)
+        else:
+            regions = ((parts, rawPixelsStore.getRegion(size, offset))
+                       for offset, size, parts in reads)
+        try:
+            for parts, data in regions:
+                for i, start in parts:
+                    rv[i] = data[start:start + sizes[i]]
+        finally:
+            regions.close()
+            rawPixelsStore.close()
+        return rv
+
+    def _getLevelSize(self, rawPixelsStore, level):
+        """
+        Returns the (sizeX, sizeY) of a resolution level of the pyramid.
+        Level 0 is the smallest resolution.
+        """
+        levels = rawPixelsStore.getResolutionDescriptions()
+        description = levels[len(levels) - 1 - level]
+        return description.sizeX, description.sizeY
+
     def getTile(self, theZ=0, theC=0, theT=0, tile=None):
         """
         Gets the specified plane as a 2D numpy array by calling
@@ -7359,9 +8040,738 @@ class _PixelsWrapper (BlitzObjectWrapper):
         tileList = list(self.getTiles([(theZ, theC, theT, tile)]))
         return tileList[0]
 
+    def _getRawDtype(self):
+        """
+        Returns the numpy dtype of the big-endian data sent by the
+        rawPixelsStore for this pixels type.
+        """
+        import numpy
+        pixelType = self.getPixelsType().value
+        return numpy.dtype(self.PIXEL_DTYPES[pixelType]).newbyteorder('>')
+
+    def _toArray(self, rawData, shape, out=None, copy=True, dtype=None):
+        """
+        Decodes the raw bytes returned by the rawPixelsStore into a numpy
+        array of the given shape, without going through a per-pixel
+        conversion.
+
+        If out is given the data is decoded into it and out is returned,
+        so that the same native-endian buffer can be reused for several
+        reads. Otherwise a new native-endian array is returned, or if copy
+        is False a read-only big-endian view onto rawData.
+        """
+        import numpy
+        if dtype is None:
+            dtype = self._getRawDtype()
+        nativeType = dtype.newbyteorder('=')
+        data = numpy.frombuffer(rawData, dtype=dtype).reshape(shape)
+        if out is None:
+            if not copy:
+                return data
+            return data.astype(nativeType)
+        if out.shape != data.shape or out.dtype != nativeType:
+            raise ValueError(
+                "out must be a %s array of shape %s, not %s of shape %s"
+                % (nativeType.name, data.shape, out.dtype.name, out.shape))
+        out[...] = data
+        return out
+
+    def getStack(self, theC=0, theT=0, out=None):
+        """
+        Gets the Z-stack for the specified channel and timepoint as a 3D
+        numpy array of shape (sizeZ, sizeY, sizeX).
+
+        :param theC:    Channel index
+        :param theT:    Time index
+        :param out:     Optional native-endian array of the right shape and
+                        type to decode the stack into, e.g. the array
+                        returned by a previous call
+        :return:        numpy array
+        """
+        localPixels = self._getLocalPixels()
+        if localPixels is not None:
+            stack = localPixels[theT, theC]
+            out = self._prepareOut(stack.shape,
+                                   stack.dtype.newbyteorder('='), out)
+            out[...] = stack
+            return out
+        rawPixelsStore = self._prepareRawPixelsStore()
+        try:
+            rawStack = rawPixelsStore.getStack(theC, theT)
+        finally:
+            rawPixelsStore.close()
+        shape = (self.getSizeZ(), self.getSizeY(), self.getSizeX())
+        return self._toArray(rawStack, shape, out)
+
+    def getProjectedPlane(self, theC=0, theT=0, algorithm='intmax',
+                          start=0, end=None, stepping=1, window=1,
+                          copy=True):
+        """
+        Projects the planes start to end of a Z-stack, every stepping
+        planes, as RenderingEngine.renderProjected*() does before rendering.
+        The planes are read one by one with :meth:`getTiles`.
+
+        If the pixels cache is enabled on the connection, see
+        :meth:`BlitzGateway.enablePixelsCache`, the projected plane is kept
+        in it, so that rendering the same projection again with other
+        settings only quantizes it. The planes of the stack are not cached,
+        so that a projection doesn't evict the tiles of a viewer. Like the
+        tiles, the projection is dropped from the cache when the pixels are
+        written to.
+
+        :param theC:        Channel index
+        :param theT:        Time index
+        :param algorithm:   'intmax', 'intmean' or 'intsum'. The mean and
+                            sum of integer pixels are rounded and clipped
+                            to the pixels type
+        :param start:       First Z index
+        :param end:         Last Z index, default is the last plane
+        :param stepping:    Z step between the projected planes
+        :param window:      Number of planes to read ahead
+        :param copy:        If False, a cached projection is returned as
+                            a read-only array
+        :return:            numpy array of shape (sizeY, sizeX)
+        """
+        import numpy
+        if algorithm not in ('intmax', 'intmean', 'intsum'):
+            raise ValueError("Unknown projection %r" % algorithm)
+        if end is None:
+            end = self.getSizeZ() - 1
+        dtype = self._getRawDtype().newbyteorder('=')
+        shape = (self.getSizeY(), self.getSizeX())
+        cache = self._conn.getPixelsCache()
+        key = (self.getId(), 'projection', theC, theT, algorithm,
+               start, end, stepping)
+        if cache is not None:
+            rawPlane = cache.get(key)
+            if rawPlane is not None:
+                plane = numpy.frombuffer(rawPlane, dtype=dtype).reshape(shape)
+                if copy:
+                    return plane.copy()
+                return plane
+        zs = range(start, end + 1, max(1, stepping))
+        # Only the projection is cached, not the planes of the stack
+        planes = self._readTiles([(z, theC, theT, None) for z in zs],
+                                 window=window, copy=False, useCache=False)
+        if algorithm == 'intmax':
+            projection = numpy.empty(shape, dtype=dtype)
+            projection.fill(numpy.iinfo(dtype).min
+                            if dtype.kind in 'iu' else -numpy.inf)
+            for plane in planes:
+                numpy.maximum(projection, plane, out=projection)
+        else:
+            total = numpy.zeros(shape, dtype=numpy.float64)
+            for plane in planes:
+                total += plane
+            if algorithm == 'intmean':
+                total /= max(1, len(zs))
+            if dtype.kind in 'iu':
+                limits = numpy.iinfo(dtype)
+                numpy.rint(total, out=total)
+                numpy.clip(total, limits.min, limits.max, out=total)
+            projection = total.astype(dtype)
+        if cache is not None:
+            cache.put(key, projection.tostring())
+        return projection
+
+    def getHypercube(self, offset, size, step=None, out=None,
+                     binning=None, window=1):
+        """
+        Gets a hypercube of pixels as a 5D numpy array of shape
+        (t, c, z, y, x).
+
+        Without binning, one pixel every step is returned in each
+        dimension. Only the planes, and when it is cheaper the rows, that
+        hold those pixels are read from the server, so that a hypercube
+        with a step of 8 in Z and Y costs about 1/64th of the full read.
+
+        With binning, each step sized block of the hypercube is reduced to
+        its mean or max value: all the pixels are read, plane by plane, so
+        the I/O is not reduced but at most window planes of the hypercube
+        are held in memory besides the result.
+
+        :param offset:  Start of the hypercube as [x, y, z, c, t]
+        :param size:    Size of the hypercube as [x, y, z, c, t]
+        :param step:    Step in each dimension as [x, y, z, c, t].
+                        Default is 1 for each dimension
+        :param out:     Optional native-endian array of the right shape and
+                        type to decode the hypercube into, e.g. the array
+                        returned by a previous call. Float64 for 'mean'
+                        binning
+        :param binning: None, 'mean' or 'max'
+        :param window:  Number of reads to keep in flight when step or
+                        binning is used, see :meth:`getTiles`
+        :return:        numpy array
+        """
+        if binning not in (None, 'mean', 'max'):
+            raise ValueError("binning must be None, 'mean' or 'max', not %r"
+                             % binning)
+        if step is None:
+            step = [1] * 5
+        # The server returns the XYZCT ordered data, one value every step
+        counts = [len(range(0, n, s)) for n, s in zip(size, step)]
+        shape = tuple(reversed(counts))
+        if binning is not None:
+            return self._getBinnedHypercube(
+                offset, size, step, shape, out, binning, window)
+        localPixels = self._getLocalPixels()
+        if localPixels is not None:
+            x, y, z, c, t = offset
+            cube = localPixels[t:t + size[4]:step[4],
+                               c:c + size[3]:step[3],
+                               z:z + size[2]:step[2],
+                               y:y + size[1]:step[1],
+                               x:x + size[0]:step[0]]
+            out = self._prepareOut(shape, cube.dtype.newbyteorder('='), out)
+            out[...] = cube
+            return out
+        if max(step) > 1:
+            return self._getStridedHypercube(
+                offset, size, step, shape, out, window)
+        rawPixelsStore = self._prepareRawPixelsStore()
+        try:
+            rawCube = rawPixelsStore.getHypercube(
+                list(offset), list(size), list(step))
+        finally:
+            rawPixelsStore.close()
+        return self._toArray(rawCube, shape, out)
+
+    def _prepareOut(self, shape, dtype, out=None):
+        """
+        Returns out after checking its shape and type, or a new array.
+        """
+        import numpy
+        if out is None:
+            return numpy.empty(shape, dtype=dtype)
+        if out.shape != shape or out.dtype != dtype:
+            raise ValueError(
+                "out must be a %s array of shape %s, not %s of shape %s"
+                % (dtype.name, shape, out.dtype.name, out.shape))
+        return out
+
+    def _getStridedHypercube(self, offset, size, step, shape, out, window):
+        """
+        Reads one pixel every step of a hypercube with getRow() or getTile()
+        calls for the wanted planes only. See :meth:`getHypercube`.
+        """
+        x, y, z, c, t = offset
+        width, height = size[0], size[1]
+        stepX, stepY = step[0], step[1]
+        sizeX = self.getSizeX()
+        dtype = self._getRawDtype()
+        out = self._prepareOut(shape, dtype.newbyteorder('='), out)
+        # Whole rows are sent, so only read them if it saves bytes
+        useRows = shape[3] * sizeX < width * height
+
+        def reads():
+            for ti, theT in enumerate(range(t, t + size[4], step[4])):
+                for ci, theC in enumerate(range(c, c + size[3], step[3])):
+                    for zi, theZ in enumerate(range(z, z + size[2], step[2])):
+                        if not useRows:
+                            yield ((ti, ci, zi), 'getTile',
+                                   (theZ, theC, theT, x, y, width, height))
+                            continue
+                        for yi, theY in enumerate(range(y, y + height, stepY)):
+                            yield ((ti, ci, zi, yi), 'getRow',
+                                   (theY, theZ, theC, theT))
+
+        rawPixelsStore = self._prepareRawPixelsStore()
+        if window > 1:
+            calls = ((key,
+                      partial(getattr(rawPixelsStore, 'begin_' + method),
+                              *args),
+                      getattr(rawPixelsStore, 'end_' + method))
+                     for key, method, args in reads())
+            results = windowedCalls(calls, window)
+        else:
+            results = ((key, getattr(rawPixelsStore, method)(*args))
+                       for key, method, args in reads())
+        try:
+            for key, rawData in results:
+                if useRows:
+                    row = self._toArray(
+                        rawData, (sizeX,), copy=False, dtype=dtype)
+                    out[key] = row[x:x + width:stepX]
+                else:
+                    tile = self._toArray(
+                        rawData, (height, width), copy=False, dtype=dtype)
+                    out[key] = tile[::stepY, ::stepX]
+        finally:
+            results.close()
+            rawPixelsStore.close()
+        return out
+
+    def _getBinnedHypercube(self, offset, size, step, shape, out, binning,
+                            window):
+        """
+        Reduces each step sized block of a hypercube to its mean or max,
+        streaming the planes with :meth:`getTiles`, without the pixels
+        cache since each plane is only read once. See :meth:`getHypercube`.
+        """
+        import numpy
+        x, y, z, c, t = offset
+        width, height = size[0], size[1]
+        starts = [range(0, n, s) for n, s in zip(size, step)]
+        if binning == 'mean':
+            reducer = numpy.add
+            dtype = numpy.dtype('float64')
+        else:
+            reducer = numpy.maximum
+            dtype = self._getRawDtype().newbyteorder('=')
+        out = self._prepareOut(shape, dtype, out)
+
+        def blocks():
+            # (t, c, z) index of a block in out and the planes it holds
+            for ti, startT in enumerate(starts[4]):
+                for ci, startC in enumerate(starts[3]):
+                    for zi, startZ in enumerate(starts[2]):
+                        planes = [
+                            (z + startZ + dz, c + startC + dc, t + startT + dt)
+                            for dt in range(min(step[4], size[4] - startT))
+                            for dc in range(min(step[3], size[3] - startC))
+                            for dz in range(min(step[2], size[2] - startZ))]
+                        yield (ti, ci, zi), planes
+
+        tile = (x, y, width, height)
+        zctTileList = [(theZ, theC, theT, tile)
+                       for key, planes in blocks()
+                       for theZ, theC, theT in planes]
+        tiles = self._readTiles(zctTileList, window=window, copy=False,
+                                useCache=False)
+        try:
+            for key, planes in blocks():
+                block = None
+                for i in range(len(planes)):
+                    plane = tiles.next().astype(dtype)
+                    plane = reducer.reduceat(plane, starts[1], axis=0)
+                    plane = reducer.reduceat(plane, starts[0], axis=1)
+                    if block is None:
+                        block = plane
+                    else:
+                        reducer(block, plane, out=block)
+                if binning == 'mean':
+                    countY = numpy.diff(list(starts[1]) + [height])
+                    countX = numpy.diff(list(starts[0]) + [width])
+                    block /= numpy.outer(countY, countX) * len(planes)
+                out[key] = block
+        finally:
+            tiles.close()
+        return out
+
 PixelsWrapper = _PixelsWrapper
 
 
+class PixelsWriter (object):
+    """
+    Writes planes, tiles and regions to a set of pixels with asynchronous
+    RawPixelsStore calls, keeping up to window of them in flight instead of
+    waiting for each write to be acknowledged. The min, max, mean and
+    variance of each channel are worked out from the data as it is written,
+    see :meth:`getChannelStats`, and the global min and max are saved on
+    :meth:`close` without another pass over the pixels. They replace the
+    saved ones only for the channels of which every pixel was written, once,
+    through this writer; for the other channels they only widen the saved
+    range, since the pixels which were not written keep their values.
+
+    Errors of the asynchronous calls are raised by :meth:`flush` or
+    :meth:`close`; once a write has failed the following ones are dropped.
+
+    Example usage::
+
+        with PixelsWriter(image.getPrimaryPixels()) as writer:
+            for z, c, t, plane in planes:
+                writer.setPlane(plane, z, c, t)
+    """
+
+    def __init__(self, pixels, window=4, resetDefaults=False):
+        """
+        :param pixels:          The :class:`PixelsWrapper` to write to
+        :param window:          Number of writes to keep in flight
+        :param resetDefaults:   If True, the rendering settings are reset on
+                                :meth:`close` so that their default windows
+                                use the new global min and max
+        """
+        self._conn = pixels._conn
+        self._pixelsId = pixels.getId()
+        self._sizes = (pixels.getSizeX(), pixels.getSizeY(),
+                       pixels.getSizeZ(), pixels.getSizeC())
+        self._channelSize = (pixels.getSizeX() * pixels.getSizeY() *
+                             pixels.getSizeZ() * pixels.getSizeT())
+        self._dtype = pixels._getRawDtype()
+        self._window = window
+        self._pending = deque()
+        self._exc = None
+        self._resetDefaults = resetDefaults
+        self._stats = defaultdict(ChannelStats)
+        # A store of our own, which still invalidates the pixels cache
+        self._rawPixelsStore = RawPixelsStoreProxyWrapper(
+            self._conn, 'createRawPixelsStore')
+        self._rawPixelsStore.setPixelsId(
+            self._pixelsId, True, self._conn.SERVICE_OPTS)
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc_value, tb):
+        if exc_type is None:
+            self.close()
+        else:
+            try:
+                self.close()
+            except Exception:
+                logger.error("Failed to close PixelsWriter", exc_info=True)
+
+    def _toBytes(self, data):
+        """
+        Returns the big-endian bytes of a numpy array, in the pixels type.
+        """
+        import numpy
+        return numpy.asarray(data).astype(self._dtype).tostring()
+
+    def _updateStats(self, c, data):
+        """
+        Updates the statistics of channel c with the values in data.
+        """
+        if data.size == 0 or self._dtype.kind == 'c':
+            return
+        self._stats[c].update(data)
+
+    def _write(self, method, *args):
+        """
+        Starts an asynchronous call of the RawPixelsStore write method,
+        first waiting for the oldest call if window calls are in flight.
+        """
+        while len(self._pending) >= self._window:
+            self._complete()
+        if self._exc is not None:
+            logger.debug("Dropping %s() after a failed write", method)
+            return
+        begin = getattr(self._rawPixelsStore, 'begin_' + method)
+        end = getattr(self._rawPixelsStore, 'end_' + method)
+        self._pending.append(
+            (end, begin(*args, _ctx=self._conn.SERVICE_OPTS)))
+
+    def _complete(self):
+        """
+        Waits for the oldest call in flight, keeping its error if any.
+        """
+        end, result = self._pending.popleft()
+        try:
+            end(result)
+        except Exception, e:
+            logger.error("Failed to write pixels %d" % self._pixelsId,
+                         exc_info=True)
+            if self._exc is None:
+                self._exc = e
+
+    def setPlane(self, plane, z, c, t):
+        """
+        Writes a whole plane.
+
+        :param plane:   2D numpy array of shape (sizeY, sizeX)
+        """
+        self._updateStats(c, plane)
+        self._write('setPlane', self._toBytes(plane), z, c, t)
+
+    def setTile(self, tile, z, c, t, x, y):
+        """
+        Writes a tile of a plane.
+
+        :param tile:    2D numpy array of shape (height, width)
+        :param x:       X coordinate of the tile in the plane
+        :param y:       Y coordinate of the tile in the plane
+        """
+        height, width = tile.shape
+        self._updateStats(c, tile)
+        self._write('setTile', self._toBytes(tile), z, c, t, x, y,
+                    width, height)
+
+    def setRegion(self, data, offset):
+        """
+        Writes raw big-endian bytes at the given byte offset in the pixels
+        data, e.g. from getPlaneOffset().
+
+        :param data:    Byte string
+        :param offset:  Byte offset in the pixels data
+        """
+        import numpy
+        sizeX, sizeY, sizeZ, sizeC = self._sizes
+        itemSize = self._dtype.itemsize
+        planeSize = sizeX * sizeY * itemSize
+        values = numpy.frombuffer(data, dtype=self._dtype)
+        # Split the region on plane boundaries to find the channels
+        start = 0
+        while start < len(values):
+            position = offset + start * itemSize
+            planeIndex = position // planeSize
+            planeEnd = (planeIndex + 1) * planeSize
+            count = min(len(values) - start,
+                        (planeEnd - position) // itemSize)
+            c = (planeIndex // sizeZ) % sizeC
+            self._updateStats(c, values[start:start + count])
+            start += count
+        self._write('setRegion', len(data), offset, data)
+
+    def flush(self):
+        """
+        Waits for all the writes in flight and raises the first error any
+        of them met.
+        """
+        while self._pending:
+            self._complete()
+        if self._exc is not None:
+            raise self._exc
+
+    def getChannelMinMax(self):
+        """
+        Returns a dict of channel index: (min, max) of the values written.
+        """
+        return dict((c, (stats.min, stats.max))
+                    for c, stats in self._stats.items())
+
+    def getChannelStats(self):
+        """
+        Returns a dict of channel index: :class:`ChannelStats` of the values
+        written, giving their count, min, max, mean and variance.
+        """
+        return dict(self._stats)
+
+    def _getGlobalRanges(self):
+        """
+        Returns a dict of channel index: (globalMin, globalMax) saved for the
+        pixels, for the channels which have statistics.
+        """
+        params = omero.sys.ParametersI()
+        params.addId(self._pixelsId)
+        query = ("select index(c), s.globalMin, s.globalMax "
+                 "from Pixels p join p.channels c join c.statsInfo s "
+                 "where p.id = :id")
+        rows = self._conn.getQueryService().projection(
+            query, params, self._conn.SERVICE_OPTS)
+        return dict((row[0].val, (row[1].val, row[2].val)) for row in rows)
+
+    def close(self):
+        """
+        Waits for all the writes, closes the RawPixelsStore and saves the
+        global min and max of each channel written to, merged with the
+        saved ones unless the whole channel was written, then resets the
+        rendering settings if asked to. Raises the first error met by any
+        of the writes.
+        """
+        if self._rawPixelsStore is None:
+            return
+        try:
+            self.flush()
+        finally:
+            self._rawPixelsStore.close(self._conn.SERVICE_OPTS)
+            self._rawPixelsStore = None
+        ranges = None
+        if any(s.count < self._channelSize for s in self._stats.values()):
+            ranges = self._getGlobalRanges()
+        pixelsService = self._conn.getPixelsService()
+        for c, stats in sorted(self._stats.items()):
+            globalMin, globalMax = stats.min, stats.max
+            if stats.count < self._channelSize and c in ranges:
+                globalMin = min(globalMin, ranges[c][0])
+                globalMax = max(globalMax, ranges[c][1])
+            pixelsService.setChannelGlobalMinMax(
+                self._pixelsId, c, globalMin, globalMax,
+                self._conn.SERVICE_OPTS)
+        if self._resetDefaults:
+            self._conn.getRenderingSettingsService().resetDefaultsForPixels(
+                self._pixelsId, self._conn.SERVICE_OPTS)
+
+
+class ThumbnailPrecomputer (object):
+    """
+    Creates the thumbnails of images at a few standard sizes in a
+    background thread, e.g. right after an import, so that the first user
+    to open a big plate does not wait for thousands of them. Images are
+    queued with :meth:`add` and taken off the queue in batches, with a
+    pause of interval seconds after each batch so that the thumbnail
+    service is not swamped. The queue holds at most maxQueued images; the
+    images added to a full queue are dropped and counted, see
+    :meth:`getStats`.
+
+    This is a helper for the code which imports or creates the images, such
+    as an import script: nothing queues images on its own. The background
+    thread joins the session of the given connection with a connection of
+    its own, so that the caller can go on using its connection meanwhile.
+
+    The default sizes are the comma separated longest sides set on the
+    server as omero.client.thumbnails.precompute_sizes, or
+    :attr:`DEFAULT_SIZES`.
+
+    Example usage::
+
+        precomputer = ThumbnailPrecomputer(conn)
+        precomputer.start()
+        precomputer.add(imageIds)
+        ...
+        precomputer.stop()
+    """
+
+    DEFAULT_SIZES = (48, 96, 256)
+    SIZES_PROPERTY = 'omero.client.thumbnails.precompute_sizes'
+
+    def __init__(self, conn, sizes=None, batchSize=32, interval=0.0,
+                 maxQueued=10000, workers=2):
+        """
+        :param conn:        The :class:`BlitzGateway` of the session to
+                            create the thumbnails in, kept open by the
+                            caller while the thumbnails are created
+        :param sizes:       Longest sides of the thumbnails to create
+        :param batchSize:   Number of images per batch
+        :param interval:    Seconds to wait after each batch
+        :param maxQueued:   Maximum number of images waiting
+        :param workers:     Number of thumbnail stores used at once, see
+                            :meth:`BlitzGateway.getThumbnailSet`
+        """
+        import Queue
+        self._conn = conn
+        if sizes is None:
+            sizes = self._getConfiguredSizes()
+        self.sizes = tuple(sizes)
+        self.batchSize = max(1, batchSize)
+        self.interval = interval
+        self.workers = workers
+        self._queue = Queue.Queue(maxQueued)
+        self._thread = None
+        self._workerConn = None
+        self._stopping = threading.Event()
+        self._lock = threading.Lock()
+        self._stats = {'queued': 0, 'dropped': 0, 'batches': 0,
+                       'thumbnails': 0, 'failed': 0, 'seconds': 0.0}
+
+    def _getConfiguredSizes(self):
+        value = self._conn.getClientSettings().get(self.SIZES_PROPERTY)
+        if not value:
+            return self.DEFAULT_SIZES
+        try:
+            return [int(size) for size in value.split(',') if size.strip()]
+        except ValueError:
+            logger.warn("Invalid %s: %s" % (self.SIZES_PROPERTY, value))
+            return self.DEFAULT_SIZES
+
+    def add(self, imageIds, block=False):
+        """
+        Queues images for their thumbnails to be created.
+
+        :param imageIds:    IDs of the images
+        :param block:       If True, wait for room in a full queue rather
+                            than dropping the images
+        :return:            The number of images queued
+        """
+        import Queue
+        added = dropped = 0
+        for imageId in imageIds:
+            try:
+                self._queue.put(long(imageId), block)
+                added += 1
+            except Queue.Full:
+                dropped += 1
+        with self._lock:
+            self._stats['queued'] += added
+            self._stats['dropped'] += dropped
+        return added
+
+    def _connectWorker(self):
+        """
+        Returns a new connection joining the session of the connection
+        given to the constructor, for the background thread.
+        """
+        conn = self._conn.clone()
+        sessionUuid = self._conn.getEventContext().sessionUuid
+        if not conn.connect(sUuid=sessionUuid):
+            raise Exception("Failed to join session %s" % sessionUuid)
+        conn.SERVICE_OPTS.setOmeroGroup(
+            self._conn.SERVICE_OPTS.getOmeroGroup())
+        return conn
+
+    def start(self):
+        """
+        Starts the background thread, with a connection of its own.
+        """
+        if self._thread is None:
+            self._workerConn = self._connectWorker()
+            self._stopping.clear()
+            self._thread = threading.Thread(
+                target=self._run, name='ThumbnailPrecomputer')
+            self._thread.daemon = True
+            self._thread.start()
+
+    def stop(self, drain=True):
+        """
+        Stops the background thread and closes its connection, leaving the
+        session open.
+
+        :param drain:   If True, wait until all the queued images are done,
+                        otherwise only for the current batch
+        """
+        if self._thread is None:
+            return
+        if drain:
+            self._queue.join()
+        self._stopping.set()
+        self._thread.join()
+        self._thread = None
+        self._workerConn.close(hard=False)
+        self._workerConn = None
+
+    def _nextBatch(self):
+        import Queue
+        batch = []
+        try:
+            batch.append(self._queue.get(True, 0.5))
+            while len(batch) < self.batchSize:
+                batch.append(self._queue.get_nowait())
+        except Queue.Empty:
+            pass
+        return batch
+
+    def _run(self):
+        while not self._stopping.is_set():
+            batch = self._nextBatch()
+            if not batch:
+                continue
+            try:
+                self._precompute(batch)
+            except Exception:
+                logger.error("Failed to create thumbnails of %s" % batch,
+                             exc_info=True)
+                with self._lock:
+                    self._stats['failed'] += len(batch) * len(self.sizes)
+            finally:
+                for imageId in batch:
+                    self._queue.task_done()
+            if self.interval:
+                self._stopping.wait(self.interval)
+
+    def _precompute(self, batch):
+        startTime = time.time()
+        created = 0
+        for size in self.sizes:
+            thumbs = self._workerConn.getThumbnailSet(
+                batch, size, workers=self.workers)
+            created += len(thumbs)
+        with self._lock:
+            self._stats['batches'] += 1
+            self._stats['thumbnails'] += created
+            self._stats['failed'] += len(batch) * len(self.sizes) - created
+            self._stats['seconds'] += time.time() - startTime
+
+    def getStats(self):
+        """
+        Returns a dict of the number of images queued, dropped and pending,
+        of the batches done, of the thumbnails created or failed and of the
+        seconds spent creating them.
+        """
+        with self._lock:
+            stats = dict(self._stats)
+        stats['pending'] = self._queue.qsize()
+        return stats
+
+
 class _FilesetWrapper (BlitzObjectWrapper):
     """
     omero_model_FilesetI class wrapper extends BlitzObjectWrapper
@@ -7550,6 +8960,18 @@ class _ChannelWrapper (BlitzObjectWrapper):
             return None
         return lut
 
+    def getLutTable(self):
+        """
+        Returns the Lookup Table of the Channel, parsed once for the whole
+        process by :func:`omero.gateway.rendering.getLutRegistry`.
+
+        :return:    numpy uint8 array of shape (256, 3) or None if no LUT
+        """
+        lut = self.getLut()
+        if lut is None:
+            return None
+        return getLutRegistry().getLut(lut, self._conn)
+
     def getWindowStart(self):
         """
         Returns the rendering settings window-start of this channel
@@ -7767,6 +9189,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
     """
 
     _re = None
+    _bandREs = None
+    _renderBuffers = None
     _pd = None
     _rm = {}
     _qf = {}
@@ -7961,14 +9385,47 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
     def _prepareRE(self, rdid=None):
         """
         Prepare the rendering engine with pixels ID and existing or new
-        rendering def.
+        rendering def. If the rendering engine pool of the connection is
+        enabled, an idle engine is reused rather than creating a new one.
 
         :return:            The Rendering Engine service
         :rtype:             :class:`ProxyObjectWrapper`
         """
 
-        pid = self.getPrimaryPixels().id
+        pool = self._conn.getRenderingEnginePool()
+        entry = None
+        if pool is not None:
+            entry = pool.get()
+        if entry is not None:
+            re, buffers = entry
+            try:
+                self._pointRE(re, rdid, self._conn._reCompressionLevel)
+            except omero.ValidationException:
+                pool.put(entry)
+                raise
+            except Ice.Exception:
+                logger.debug("Discarding pooled rendering engine",
+                             exc_info=True)
+                pool.discard(entry)
+            else:
+                if self._renderBuffers is None:
+                    self._renderBuffers = buffers
+                return re
         re = self._conn.createRenderingEngine()
+        self._pointRE(re, rdid)
+        if pool is not None and self._conn._reCompressionLevel is None:
+            self._conn._reCompressionLevel = re.getCompressionLevel(
+                self._conn.SERVICE_OPTS)
+        return re
+
+    def _pointRE(self, re, rdid=None, compression=None):
+        """
+        Points the rendering engine re at the pixels of this image and
+        loads the existing or a new rendering def. See :meth:`_prepareRE`.
+        The compression level, which is not part of the rendering def, is
+        reset to compression if given, e.g. for a pooled engine.
+        """
+        pid = self.getPrimaryPixels().id
         ctx = self._conn.SERVICE_OPTS.copy()
 
         ctx.setOmeroGroup(self.details.group.id.val)
@@ -7985,7 +9442,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         else:
             re.loadRenderingDef(rdid, ctx)
         re.load(ctx)
-        return re
+        if compression is not None:
+            re.setCompressionLevel(compression, ctx)
 
     def _prepareRenderingEngine(self, rdid=None):
         """
@@ -8740,7 +10198,8 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
 
     @assert_pixels
     def getHistogram(self, channels, binCount, globalRange=True,
-                     theZ=0, theT=0):
+                     theZ=0, theT=0, tiled=False, level=None, maxTiles=None,
+                     window=8):
         """
         Get pixel intensity histogram of a single plane for specified channels.
 
@@ -8749,14 +10208,32 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         planes.
         If False, use the pixel intensity range for the specified plane.
 
+        The server refuses to compute histograms of big images. If tiled is
+        True, or a resolution level is given, the plane is instead streamed
+        tile by tile, see :meth:`PixelsWrapper.getTiles`, and the bins are
+        accumulated here, holding only one tile per request in flight in
+        memory. If maxTiles is given, only that many tiles spread evenly
+        over the plane are sampled instead of all of them.
+
         :param channels:        List of channel integers we want
         :param binCount:        Number of bins in the histogram
         :param globalRange:     If false, use min/max intensity for this plane
         :param theZ:            Z index of plane
         :param theT:            T index of plane
+        :param tiled:           If True, stream tiles instead of asking the
+                                server for the histogram
+        :param level:           Resolution level to read tiles from, for
+                                pyramids. Implies tiled
+        :param maxTiles:        Maximum number of tiles to sample per channel,
+                                None to read all of them
+        :param window:          Number of tiles to request ahead
         :return:                Dict of channelIndex: integer list
         """
 
+        if tiled or level is not None or maxTiles is not None:
+            return self._getTiledHistogram(
+                channels, binCount, globalRange, theZ, theT, level,
+                maxTiles, window)
         pixels_id = self.getPixelsId()
         rp = self._conn.createRawPixelsStore()
         try:
@@ -8769,6 +10246,90 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         finally:
             rp.close()
 
+    def _getHistogramTiles(self, level=None, maxTiles=None):
+        """
+        Returns the list of (x, y, width, height) tiles covering a plane at
+        the given resolution level, or maxTiles of them spread evenly over
+        the plane.
+        """
+        pixels = self.getPrimaryPixels()
+        rp = self._conn.createRawPixelsStore()
+        try:
+            rp.setPixelsId(self.getPixelsId(), True, self._conn.SERVICE_OPTS)
+            if level is None:
+                sizeX, sizeY = self.getSizeX(), self.getSizeY()
+            else:
+                rp.setResolutionLevel(level)
+                sizeX, sizeY = pixels._getLevelSize(rp, level)
+            tileW, tileH = rp.getTileSize()
+        finally:
+            rp.close()
+        tiles = [(x, y, min(tileW, sizeX - x), min(tileH, sizeY - y))
+                 for y in range(0, sizeY, tileH)
+                 for x in range(0, sizeX, tileW)]
+        if maxTiles is not None and len(tiles) > maxTiles:
+            tiles = [tiles[i * len(tiles) // maxTiles]
+                     for i in range(maxTiles)]
+        return tiles
+
+    def _getTiledHistogram(self, channels, binCount, globalRange, theZ,
+                           theT, level, maxTiles, window):
+        """
+        Computes the histogram of :meth:`getHistogram` from the plane's
+        tiles. The tiles of all the channels are streamed together so that
+        the requests for the channels overlap. They are not put in the
+        pixels cache, so that a histogram doesn't evict the tiles of a
+        viewer.
+        """
+        import numpy
+        pixels = self.getPrimaryPixels()
+        tiles = self._getHistogramTiles(level, maxTiles)
+
+        ranges = {}
+        if globalRange:
+            ranges = self._getChannelGlobalRanges()
+        missing = [c for c in channels if c not in ranges]
+        if missing:
+            # Plane range, or no statistics yet: find it with a first pass
+            zctTileList = [(theZ, c, theT, tile)
+                           for tile in tiles for c in missing]
+            for i, data in enumerate(pixels._readTiles(
+                    zctTileList, window=window, copy=False, level=level,
+                    useCache=False)):
+                c = zctTileList[i][1]
+                minValue, maxValue = data.min(), data.max()
+                if c in ranges:
+                    minValue = min(minValue, ranges[c][0])
+                    maxValue = max(maxValue, ranges[c][1])
+                ranges[c] = (minValue, maxValue)
+
+        histogram = dict((c, numpy.zeros(binCount, dtype=numpy.int64))
+                         for c in channels)
+        zctTileList = [(theZ, c, theT, tile)
+                       for tile in tiles for c in channels]
+        for i, data in enumerate(pixels._readTiles(
+                zctTileList, window=window, copy=False, level=level,
+                useCache=False)):
+            c = zctTileList[i][1]
+            counts, edges = numpy.histogram(data, binCount, ranges[c])
+            histogram[c] += counts
+        return dict((c, [int(n) for n in counts])
+                    for c, counts in histogram.items())
+
+    def _getChannelGlobalRanges(self):
+        """
+        Returns a dict of channelIndex: (globalMin, globalMax) for the
+        channels which have statistics.
+        """
+        params = omero.sys.ParametersI()
+        params.addId(self.getPixelsId())
+        query = ("select index(c), s.globalMin, s.globalMax "
+                 "from Pixels p join p.channels c join c.statsInfo s "
+                 "where p.id = :id")
+        rows = self._conn.getQueryService().projection(
+            query, params, self._conn.SERVICE_OPTS)
+        return dict((row[0].val, (row[1].val, row[2].val)) for row in rows)
+
     def getPixelLine(self, z, t, pos, axis, channels=None, range=None):
         """
         Grab a horizontal or vertical line from the image pixel data, for the
@@ -9143,7 +10704,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
                 except omero.SecurityViolation:  # pragma: no cover
                     self._obj.clearPixels()
                     self._obj.pixelsLoaded = False
-                    self._closeRE()
+                    self._closeRE(reuse=False)
                     return self.renderJpeg(z, t, None)
             rv = self._re.renderCompressed(self._pd, self._conn.SERVICE_OPTS)
             return rv
@@ -9155,10 +10716,410 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             # as it hangs
             self._obj.clearPixels()
             self._obj.pixelsLoaded = False
-            self._closeRE()
+            self._closeRE(reuse=False)
             raise
 
-    def _closeRE(self):
+    def _getRenderingValues(self):
+        """
+        Returns the current settings of the rendering engine of this image,
+        including those which are not saved, with one batch of asynchronous
+        calls, as (model, quantumDef, compression, channels) where channels
+        holds for each channel (active, start, end, rgba, lut, family,
+        coefficient, noiseReduction, codomainMaps).
+        """
+        re = self._re
+        ctx = self._conn.SERVICE_OPTS
+        getters = [('getModel', ()), ('getQuantumDef', ()),
+                   ('getCompressionLevel', ())]
+        sizeC = self.getSizeC()
+        for c in range(sizeC):
+            getters.extend([
+                ('isActive', (c,)), ('getChannelWindowStart', (c,)),
+                ('getChannelWindowEnd', (c,)), ('getRGBA', (c,)),
+                ('getChannelLookupTable', (c,)), ('getChannelFamily', (c,)),
+                ('getChannelCurveCoefficient', (c,)),
+                ('getChannelNoiseReduction', (c,)),
+                ('getCodomainMapContext', (c,))])
+        results = [getattr(re, 'begin_' + method)(*args, _ctx=ctx)
+                   for method, args in getters]
+        values = [getattr(re, 'end_' + method)(result)
+                  for (method, args), result in zip(getters, results)]
+        channels = [values[3 + 9 * c:12 + 9 * c] for c in range(sizeC)]
+        return values[0], values[1], values[2], channels
+
+    def _getRenderingState(self):
+        """
+        Returns the calls which set up a rendering engine like the one of
+        this image, including the settings which are not saved, as two lists
+        of (method, args) to run one after the other.
+        """
+        model, qd, compression, channels = self._getRenderingValues()
+        calls = [('setModel', (model,)),
+                 ('setCompressionLevel', (compression,)),
+                 ('setQuantumStrategy', (qd.getBitResolution().val,)),
+                 ('setCodomainInterval',
+                  (qd.getCdStart().val, qd.getCdEnd().val))]
+        # Codomain maps have to be removed before they are added again
+        codomainCalls = []
+        reverse = omero.romio.ReverseIntensityMapContext()
+        reverseType = omero.model.ReverseIntensityContext
+        for c, values in enumerate(channels):
+            (active, start, end, rgba, lut, family, coefficient,
+             noiseReduction, codomainMaps) = values
+            calls.extend([
+                ('setActive', (c, active)),
+                ('setChannelWindow', (c, start, end)),
+                ('setRGBA', tuple([c] + list(rgba))),
+                ('setChannelLookupTable', (c, lut or None)),
+                ('setQuantizationMap',
+                 (c, family, coefficient, noiseReduction)),
+                ('removeCodomainMapFromChannel', (reverse, c))])
+            for codomainMap in codomainMaps:
+                if isinstance(codomainMap, reverseType):
+                    codomainCalls.append(
+                        ('addCodomainMapToChannel', (reverse, c)))
+        return calls, codomainCalls
+
+    def _getBandEngines(self, count, level):
+        """
+        Returns count rendering engines for this image, besides the one of
+        the image, set up with the same settings and resolution level. They
+        are kept until :meth:`_closeRE`.
+        """
+        if self._bandREs is None:
+            self._bandREs = []
+        rdid = self._re.getRenderingDefId()
+        while len(self._bandREs) < count:
+            self._bandREs.append(self._prepareRE(rdid=rdid))
+        engines = self._bandREs[:count]
+        calls, codomainCalls = self._getRenderingState()
+        calls.append(('setResolutionLevel', (level,)))
+        ctx = self._conn.SERVICE_OPTS
+        for batch in (calls, codomainCalls):
+            # All the calls of a batch are independent: run them at once
+            results = [(re, method,
+                        getattr(re, 'begin_' + method)(*args, _ctx=ctx))
+                       for re in engines for method, args in batch]
+            for re, method, result in results:
+                getattr(re, 'end_' + method)(result)
+        return engines
+
+    @assert_re()
+    def renderPackedInt(self, z, t, x=0, y=0, width=None, height=None,
+                        level=None, bands=1, out=None):
+        """
+        Renders a plane, or a region of it, as a 2D numpy array of the
+        packed ARGB values returned by RenderingEngine.renderAsPackedInt().
+        The values are written into out if it is given, so that rendering
+        frames of the same size does not allocate a new array each time.
+
+        If bands is greater than 1, the region is split into that many
+        horizontal bands which are rendered at the same time by as many
+        rendering engines, set up like the one of this image, so that the
+        quantization, colour mapping and compositing of a big region are
+        spread over the threads of the server. The result is the same as
+        with a single rendering engine.
+
+        :param z:               The Z index
+        :param t:               The T index
+        :param x:               The x coordinate of the region
+        :param y:               The y coordinate of the region
+        :param width:           The width of the region, default is up to
+                                the edge of the plane
+        :param height:          The height of the region, default is up to
+                                the edge of the plane
+        :param level:           The resolution level, default is the current
+                                one of the rendering engine
+        :param bands:           Number of rendering engines to use
+        :param out:             Contiguous numpy uint32 array of shape
+                                (height, width) to render into
+        :return:                numpy uint32 array of shape (height, width)
+        """
+        import numpy
+        if level is None:
+            level = self._re.getResolutionLevel()
+        else:
+            self._re.setResolutionLevel(level)
+        if width is None or height is None:
+            levels = self._re.getResolutionDescriptions()
+            description = levels[len(levels) - 1 - level]
+            if width is None:
+                width = description.sizeX - x
+            if height is None:
+                height = description.sizeY - y
+        rgb = packedIntBuffer((height, width), out)
+        bands = max(1, min(bands, height))
+        engines = [self._re]
+        if bands > 1:
+            engines.extend(self._getBandEngines(bands - 1, level))
+        ctx = self._conn.SERVICE_OPTS
+        results = []
+        for i, re in enumerate(engines):
+            top = y + height * i // bands
+            bottom = y + height * (i + 1) // bands
+            planeDef = omero.romio.PlaneDef(self.PLANEDEF)
+            planeDef.z = long(z)
+            planeDef.t = long(t)
+            planeDef.region = omero.romio.RegionDef(
+                int(x), int(top), int(width), int(bottom - top))
+            results.append(
+                (re, re.begin_renderAsPackedInt(planeDef, _ctx=ctx)))
+        # The ARGB values are Java ints, written as is through a signed view
+        signed = rgb.reshape(-1).view(numpy.int32)
+        start = 0
+        for re, result in results:
+            band = re.end_renderAsPackedInt(result)
+            signed[start:start + len(band)] = band
+            start += len(band)
+        return rgb
+
+    def getChannelSettings(self):
+        """
+        Returns the current rendering settings of the channels, including
+        those which are not saved, for rendering on the client side.
+
+        :return:    (greyscale, cdStart, cdEnd, channels) where channels
+                    is a list of
+                    :class:`omero.gateway.rendering.ChannelSettings`
+        """
+        model, qd, compression, values = self._getRenderingValues()
+        reverseType = omero.model.ReverseIntensityContext
+        channels = []
+        for (active, start, end, rgba, lut, family, coefficient,
+             noiseReduction, codomainMaps) in values:
+            if lut:
+                lut = getLutRegistry().getLut(lut, self._conn)
+            reverse = any(isinstance(m, reverseType) for m in codomainMaps)
+            channels.append(ChannelSettings(
+                start, end, family.getValue().val, coefficient,
+                noiseReduction, rgba, lut or None, reverse, active))
+        greyscale = model.getValue().val == 'greyscale'
+        return (greyscale, qd.getCdStart().val, qd.getCdEnd().val,
+                channels)
+
+    @assert_re()
+    def renderLocalPackedInt(self, z, t, x=0, y=0, width=None, height=None,
+                             level=None, window=None, out=None):
+        """
+        Renders a plane, or a region of it, on the client side with the
+        current rendering settings, as :meth:`renderPackedInt` does on the
+        server. If a projection is set, see :meth:`setProjection`, the
+        projected planes of :meth:`PixelsWrapper.getProjectedPlane` are
+        rendered and z is ignored. The raw tiles of the active channels are
+        read with :meth:`PixelsWrapper.getTiles`, so that the pixels cache
+        and local pixels of the connection are used, and the quantum maps of
+        integer pixels types are taken from the cache shared by the process,
+        see :func:`omero.gateway.rendering.getQuantumMapCache`. The scratch
+        arrays of the rendering are kept by this wrapper and reused by the
+        next call, and the values are written into out if it is given.
+
+        :param z:               The Z index
+        :param t:               The T index
+        :param x:               The x coordinate of the region
+        :param y:               The y coordinate of the region
+        :param width:           The width of the region, default is up to
+                                the edge of the plane
+        :param height:          The height of the region, default is up to
+                                the edge of the plane
+        :param level:           The resolution level, default is the full
+                                resolution
+        :param window:          Number of tiles to read ahead, default is
+                                one per active channel
+        :param out:             Contiguous numpy uint32 array of shape
+                                (height, width) to render into
+        :return:                numpy uint32 array of shape (height, width)
+        """
+        settings = self.getChannelSettings()
+        if width is None or height is None:
+            if level is None:
+                sizeX, sizeY = self.getSizeX(), self.getSizeY()
+            else:
+                levels = self._re.getResolutionDescriptions()
+                description = levels[len(levels) - 1 - level]
+                sizeX, sizeY = description.sizeX, description.sizeY
+            if width is None:
+                width = sizeX - x
+            if height is None:
+                height = sizeY - y
+        pixels = self.getPrimaryPixels()
+        active = self._getActiveChannelIndexes(settings)
+        if self.getProjection() != 'normal':
+            if level is not None:
+                raise ValueError(
+                    "Projections are only rendered at full resolution")
+            prStart, prEnd = self.getProjectionRange()
+            tiles = (pixels.getProjectedPlane(
+                c, t, self.getProjection(), prStart or 0, prEnd,
+                window=window or 1, copy=False)[y:y + height, x:x + width]
+                for c in active)
+        else:
+            tile = (x, y, width, height)
+            tiles = pixels.getTiles([(z, c, t, tile) for c in active],
+                                    window=window or len(active), copy=False,
+                                    level=level)
+        return self._renderLocalTiles(settings, active, list(tiles),
+                                      width, height, out)
+
+    def _getActiveChannelIndexes(self, settings):
+        """
+        Returns the indexes of the channels rendered with the settings of
+        :meth:`getChannelSettings`.
+        """
+        greyscale, cdStart, cdEnd, channels = settings
+        active = [c for c, channel in enumerate(channels) if channel.active]
+        if greyscale:
+            active = active[:1]
+        return active
+
+    def _renderLocalTiles(self, settings, active, tiles, width, height,
+                          out=None):
+        """
+        Renders the raw tiles of the active channels with the settings of
+        :meth:`getChannelSettings`, reusing the scratch arrays of this
+        wrapper.
+        """
+        greyscale, cdStart, cdEnd, channels = settings
+        pixelsType = self.getPrimaryPixels().getPixelsType().value
+        planes = [None] * len(channels)
+        for c, plane in zip(active, tiles):
+            planes[c] = plane
+        if not active:
+            import numpy
+            planes[0] = numpy.zeros((height, width))
+        if self._renderBuffers is None:
+            self._renderBuffers = RenderBuffers()
+        return renderChannels(planes, pixelsType, channels, greyscale,
+                              cdStart, cdEnd, out=out,
+                              buffers=self._renderBuffers)
+
+    def renderLocalCompressed(self, z, t, x=0, y=0, width=None, height=None,
+                              level=None, compression=0.9, encoding='jpeg',
+                              encoder=None, timings=None):
+        """
+        Renders a plane, or a region of it, on the client side with
+        :meth:`renderLocalPackedInt` and encodes it, as renderCompressed()
+        does on the server.
+
+        :param compression:     JPEG quality from 0 to 1
+        :param encoding:        'jpeg', 'png' or 'deflate', see
+                                :class:`omero.gateway.rendering.ImageEncoder`
+        :param encoder:         ImageEncoder to use instead of a new one,
+                                so that its threads and buffers are reused
+        :param timings:         If a dict, the seconds spent rendering and
+                                encoding are set as its 'render' and
+                                'encode' items
+        :return:                The encoded bytes
+        """
+        startTime = time.time()
+        argb = self.renderLocalPackedInt(z, t, x, y, width, height, level)
+        renderTime = time.time() - startTime
+        startTime = time.time()
+        if encoder is None:
+            # Don't leave the threads of a temporary encoder behind
+            encoder = ImageEncoder(encoding, compression)
+            try:
+                data = encoder.encode(argb)
+            finally:
+                encoder.close()
+        else:
+            data = encoder.encode(argb)
+        encodeTime = time.time() - startTime
+        logger.debug("Rendered in %s secs, encoded in %s secs"
+                     % (renderTime, encodeTime))
+        if timings is not None:
+            timings['render'] = renderTime
+            timings['encode'] = encodeTime
+        return data
+
+    @assert_re()
+    def renderLocalThumbnail(self, size=96, z=None, t=None,
+                             compression=0.9, encoding='jpeg', encoder=None,
+                             window=4):
+        """
+        Renders a thumbnail, with its longest side of size pixels, on the
+        client side with the current rendering settings, without reading
+        the full resolution plane. For a pyramid, the smallest resolution
+        level at least as big as the thumbnail is rendered with
+        :meth:`renderLocalPackedInt`. Otherwise only one pixel every step,
+        in x and y, of the full resolution plane is read with
+        :meth:`PixelsWrapper.getHypercube`. The rendered pixels are then
+        scaled to the size of the thumbnail, nearest neighbour.
+
+        :param size:            Longest side of the thumbnail
+        :param z:               The Z index, default is the default Z
+        :param t:               The T index, default is the default T
+        :param compression:     JPEG quality from 0 to 1
+        :param encoding:        'jpeg', 'png' or 'deflate', see
+                                :class:`omero.gateway.rendering.ImageEncoder`
+        :param encoder:         ImageEncoder to use instead of a new one
+        :param window:          Number of reads to keep in flight
+        :return:                The encoded bytes
+        """
+        import numpy
+        if z is None:
+            z = self._re.getDefaultZ()
+        if t is None:
+            t = self._re.getDefaultT()
+        sizeX, sizeY = self.getSizeX(), self.getSizeY()
+        longest = max(sizeX, sizeY)
+        thumbX = max(1, int(round(sizeX * size / float(longest))))
+        thumbY = max(1, int(round(sizeY * size / float(longest))))
+        # Descriptions go from the full resolution to the smallest level
+        levels = self._re.getResolutionDescriptions()
+        big = [(d.sizeX * d.sizeY, len(levels) - 1 - i)
+               for i, d in enumerate(levels)
+               if i > 0 and max(d.sizeX, d.sizeY) >= size]
+        if big:
+            argb = self.renderLocalPackedInt(z, t, level=min(big)[1],
+                                             window=window)
+        else:
+            settings = self.getChannelSettings()
+            active = self._getActiveChannelIndexes(settings)
+            pixels = self.getPrimaryPixels()
+            step = max(1, longest // size)
+            tiles = [pixels.getHypercube(
+                [0, 0, z, c, t], [sizeX, sizeY, 1, 1, 1],
+                [step, step, 1, 1, 1], window=window)[0, 0, 0]
+                for c in active]
+            height, width = tiles and tiles[0].shape or (
+                len(range(0, sizeY, step)), len(range(0, sizeX, step)))
+            argb = self._renderLocalTiles(settings, active, tiles,
+                                          width, height)
+        rows = numpy.arange(thumbY) * argb.shape[0] // thumbY
+        columns = numpy.arange(thumbX) * argb.shape[1] // thumbX
+        argb = numpy.ascontiguousarray(argb[rows[:, None], columns])
+        if encoder is not None:
+            return encoder.encode(argb)
+        encoder = ImageEncoder(encoding, compression)
+        try:
+            return encoder.encode(argb)
+        finally:
+            encoder.close()
+
+    def _closeRE(self, reuse=True):
+        """
+        Closes the rendering engines of this image, or hands them over to
+        the rendering engine pool of the connection if it is enabled and
+        reuse is True.
+        """
+        pool = None
+        # Engines are only reused once the level to reset them to is known
+        if reuse and self._conn._reCompressionLevel is not None:
+            pool = self._conn.getRenderingEnginePool()
+        for re in self._bandREs or []:
+            if pool is not None:
+                pool.put((re, None))
+                continue
+            try:
+                re.close()
+            except Exception:
+                logger.debug("Failed to close band engine", exc_info=True)
+        self._bandREs = None
+        if pool is not None and self._re is not None:
+            pool.put((self._re, self._renderBuffers))
+            self._renderBuffers = None
+            self._re = None
+            return
         try:
             if self._re is not None:
                 self._re.close()
@@ -9195,7 +11156,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
                 except omero.SecurityViolation:  # pragma: no cover
                     self._obj.clearPixels()
                     self._obj.pixelsLoaded = False
-                    self._closeRE()
+                    self._closeRE(reuse=False)
                     return self.renderJpeg(z, t, None)
             projection = self.PROJECTIONS.get(self._pr, -1)
             if not isinstance(
@@ -9221,9 +11182,72 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
             # hangs
             self._obj.clearPixels()
             self._obj.pixelsLoaded = False
-            self._closeRE()
+            self._closeRE(reuse=False)
             raise
 
+    @assert_re()
+    def renderFrames(self, frames, compression=0.9, level=None, window=2,
+                     engines=1):
+        """
+        Renders a sequence of frames, e.g. the planes of a movie or the
+        panels of a montage, and returns a generator of their compressed
+        data in the order of frames.
+
+        Each frame is rendered with a PlaneDef of its own rather than by
+        changing the default Z and T, so the settings of the rendering
+        engine, and the quantization tables built from them, are left as
+        they are for all the frames. Up to window renderCompressed() calls
+        are kept in flight, so that the server reads and renders the next
+        frames while the current one is sent back and used. If engines is
+        greater than 1, the frames are shared out between that many
+        rendering engines set up like the one of this image, which render
+        them at the same time.
+
+        :param frames:          Iterable of (z, t, region) where region is
+                                (x, y, width, height) or None for the whole
+                                plane
+        :param compression:     Compression level for jpeg
+        :param level:           The resolution level, default is the current
+                                one of the rendering engine
+        :param window:          Number of frames to render ahead
+        :param engines:         Number of rendering engines to use
+        :return:                Generator of jpeg data
+        """
+        if compression is not None:
+            self._re.setCompressionLevel(float(compression))
+        if level is None:
+            level = self._re.getResolutionLevel()
+        else:
+            self._re.setResolutionLevel(level)
+        renderingEngines = [self._re]
+        if engines > 1:
+            renderingEngines.extend(self._getBandEngines(engines - 1, level))
+        ctx = self._conn.SERVICE_OPTS
+
+        def calls():
+            for i, (z, t, region) in enumerate(frames):
+                re = renderingEngines[i % len(renderingEngines)]
+                planeDef = omero.romio.PlaneDef(self.PLANEDEF)
+                planeDef.z = long(z)
+                planeDef.t = long(t)
+                if region is not None:
+                    planeDef.region = omero.romio.RegionDef(
+                        *[int(v) for v in region])
+                yield (i, partial(re.begin_renderCompressed, planeDef,
+                                  _ctx=ctx),
+                       re.end_renderCompressed)
+
+        window = max(window, len(renderingEngines))
+
+        def render():
+            results = windowedCalls(calls(), window)
+            try:
+                for i, rv in results:
+                    yield rv
+            finally:
+                results.close()
+        return render()
+
     def exportOmeTiff(self, bufsize=0):
         """
         Exports the OME-TIFF representation of this image.
@@ -9963,6 +11987,7 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         ctx = self._conn.SERVICE_OPTS.copy()
         ctx.setOmeroGroup(self.details.group.id.val)
         self._re.saveCurrentSettings(ctx)
+        self._conn._invalidateThumbnails(pixelsIds=[self.getPixelsId()])
         return True
 
     @assert_re()
@@ -9981,8 +12006,148 @@ class _ImageWrapper (BlitzObjectWrapper, OmeroRestrictionWrapper):
         if not self.canAnnotate():
             save = False
         self._re.resetDefaultSettings(save, ctx)
+        if save:
+            self._conn._invalidateThumbnails(pixelsIds=[self.getPixelsId()])
         return True
 
+    def getSampledChannelStats(self, z=None, t=0, minSamples=2 ** 18,
+                               tileSize=512, window=4):
+        """
+        Estimates the statistics of the channels of a plane from a sample of
+        its pixels rather than from all of them, so that rendering settings
+        for a big image are found in a few requests. For a pyramid, the
+        smallest resolution level with at least minSamples pixels is read.
+        Otherwise tiles spread over the plane are read until at least
+        minSamples pixels are sampled. The larger minSamples, the closer the
+        estimates are to the statistics of the full resolution plane.
+
+        :param z:           The Z index, default is the middle plane
+        :param t:           The T index
+        :param minSamples:  Minimum number of pixels sampled per channel
+        :param tileSize:    Width and height of the sampled tiles
+        :param window:      Number of tiles to read ahead
+        :return:            List of :class:`omero.gateway.utils.ChannelStats`
+                            of each channel
+        """
+        if z is None:
+            z = self.getSizeZ() // 2
+        pixels = self.getPrimaryPixels()
+        rawPixelsStore = pixels._prepareRawPixelsStore()
+        try:
+            levels = rawPixelsStore.getResolutionDescriptions()
+        finally:
+            rawPixelsStore.close()
+        # Descriptions go from the full resolution to the smallest level
+        sizes = [(d.sizeX * d.sizeY, len(levels) - 1 - i, d.sizeX, d.sizeY)
+                 for i, d in enumerate(levels)]
+        enough = [size for size in sizes if size[0] >= minSamples]
+        count, level, sizeX, sizeY = enough and min(enough) or max(sizes)
+        tiles = [None]
+        if level == len(levels) - 1:
+            level = None
+            if count > minSamples:
+                tiles = self._getSampleTiles(sizeX, sizeY, minSamples,
+                                             tileSize)
+        zctTileList = [(z, c, t, tile) for c in range(self.getSizeC())
+                       for tile in tiles]
+        stats = [ChannelStats() for c in range(self.getSizeC())]
+        # Sampled tiles are read once, keep them out of the pixels cache
+        data = pixels._readTiles(zctTileList, window=window, copy=False,
+                                 level=level, useCache=False)
+        for zctTile, tile in zip(zctTileList, data):
+            stats[zctTile[1]].update(tile)
+        return stats
+
+    def _getSampleTiles(self, sizeX, sizeY, minSamples, tileSize):
+        """
+        Returns the (x, y, width, height) of tiles evenly spread over a
+        plane of sizeX by sizeY, holding at least minSamples pixels.
+        """
+        import math
+        columns = (sizeX + tileSize - 1) // tileSize
+        rows = (sizeY + tileSize - 1) // tileSize
+        count = int(math.ceil(float(minSamples) / tileSize ** 2))
+        side = int(math.ceil(math.sqrt(count)))
+        tiles = []
+        for row in sorted(set(rows * (2 * j + 1) // (2 * side)
+                              for j in range(side))):
+            for column in sorted(set(columns * (2 * i + 1) // (2 * side)
+                                     for i in range(side))):
+                x = column * tileSize
+                y = row * tileSize
+                tiles.append((x, y, min(tileSize, sizeX - x),
+                              min(tileSize, sizeY - y)))
+        return tiles
+
+    def resetDefaultsFromSamples(self, save=True, **kwargs):
+        """
+        Sets the window of each channel to the min and max of a sample of
+        its pixels, see :meth:`getSampledChannelStats`, instead of
+        statistics over all the pixels as :meth:`resetDefaults` does, and
+        saves the settings if save is True.
+
+        If the image has no rendering settings yet and they are saved, the
+        server's default settings are created without being saved and
+        saved with the sampled windows, rather than preparing the rendering
+        engine of the image, which would first save the default settings.
+
+        :param kwargs:  Options of :meth:`getSampledChannelStats`
+        :return:        The list of ChannelStats of the channels
+        """
+        stats = self.getSampledChannelStats(**kwargs)
+        save = save and self.canAnnotate()
+        if (save and self._re is None and
+                all(channelStats.count for channelStats in stats) and
+                not self._hasRenderingDef()):
+            self._saveSampledRenderingDef(stats)
+            return stats
+        if not self._prepareRenderingEngine():
+            return stats
+        for channel, channelStats in zip(self.getChannels(), stats):
+            if channelStats.count:
+                channel.setWindow(channelStats.min, channelStats.max)
+        if save:
+            self.saveDefaults()
+        return stats
+
+    def _hasRenderingDef(self):
+        """
+        Returns True if the rendering engine would find rendering settings
+        of the current user or of the owner of this image to load.
+        """
+        params = omero.sys.ParametersI()
+        params.addId(self.getPixelsId())
+        params.addIds([self._conn.getUserId(), self.getOwner().getId()])
+        ctx = self._conn.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(self.details.group.id.val)
+        rows = self._conn.getQueryService().projection(
+            "select count(r.id) from RenderingDef r "
+            "where r.pixels.id = :id and r.details.owner.id in (:ids)",
+            params, ctx)
+        return unwrap(rows[0][0]) > 0
+
+    def _saveSampledRenderingDef(self, stats):
+        """
+        Creates and saves rendering settings of this image for
+        :meth:`resetDefaultsFromSamples`: the server's default settings,
+        with the windows of the channels set to the sampled min and max.
+        """
+        ctx = self._conn.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(self.details.group.id.val)
+        re = self._conn.createRenderingEngine()
+        try:
+            re.lookupPixels(self.getPixelsId(), ctx)
+            re.resetDefaultSettings(False, ctx)
+            re.load(ctx)
+            for c, channelStats in enumerate(stats):
+                re.setChannelWindow(c, float(channelStats.min),
+                                    float(channelStats.max), ctx)
+            re.saveCurrentSettings(ctx)
+            self._onResetDefaults(re.getRenderingDefId(ctx))
+        finally:
+            re.close()
+        self._conn._invalidateThumbnails(pixelsIds=[self.getPixelsId()])
+
     def countArchivedFiles(self):
         """
         Returns the number of Original 'archived' Files linked to primary
@@ -0,0 +1,852 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+#
+# Copyright (C) 2019 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU Affero General Public License as
+# published by the Free Software Foundation, either version 3 of the
+# License, or (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU Affero General Public License for more details.
+#
+# You should have received a copy of the GNU Affero General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+
+"""
+Helpers for rendering pixels on the client side, shared by all the
+connections of the process.
+"""
+
+import os
+import time
+import logging
+import threading
+from collections import OrderedDict
+
+logger = logging.getLogger(__name__)
+
+LUT_MIMETYPE = "text/x-lut"
+
+
+def parseLut(data):
+    """
+    Parses the content of a lookup table file, in one of the formats read
+    by ImageJ and the OMERO server:
+
+    - 768 bytes: 256 red, then 256 green, then 256 blue values
+    - an 'ICOL' header of 32 bytes followed by the 768 bytes above
+    - text: one line per colour of red, green and blue values, optionally
+      preceded by an index column and a header line. Tables of fewer than
+      256 colours are interpolated
+
+    :param data:    Content of the file as a byte string
+    :return:        Read-only numpy uint8 array of shape (256, 3)
+    """
+    import numpy
+    if len(data) == 800 and data[:4] == 'ICOL':
+        data = data[32:]
+    if len(data) == 768:
+        table = numpy.frombuffer(data, dtype=numpy.uint8).reshape(3, 256).T
+    else:
+        table = _parseTextLut(data)
+    table = numpy.ascontiguousarray(table, dtype=numpy.uint8)
+    table.flags.writeable = False
+    return table
+
+
+def _parseTextLut(data):
+    """
+    Parses a text lookup table into an array of shape (256, 3).
+    """
+    import numpy
+    rows = []
+    for line in data.splitlines():
+        try:
+            values = [float(v) for v in line.replace(',', ' ').split()]
+        except ValueError:
+            # Header line
+            continue
+        if len(values) in (3, 4):
+            rows.append(values[-3:])
+    if not rows or len(rows) > 256:
+        raise ValueError("Not a lookup table of 1 to 256 colours")
+    colours = numpy.array(rows)
+    if len(colours) < 256:
+        # Same interpolation as ImageJ
+        scale = len(colours) / 256.0
+        positions = numpy.arange(256) * scale
+        i1 = positions.astype(int)
+        i2 = numpy.minimum(i1 + 1, len(colours) - 1)
+        fraction = (positions - i1)[:, numpy.newaxis]
+        colours = (1 - fraction) * colours[i1] + fraction * colours[i2]
+    return numpy.clip(colours, 0, 255).astype(numpy.uint8)
+
+
+class LutRegistry(object):
+
+    """
+    Registry of parsed lookup tables, so that each LUT file is read and
+    parsed once and then shared by all the users of the process, e.g. every
+    connection of a web server.
+
+    LUTs are looked up by name, e.g. 'fire.lut' or 'janelia/pup_br.lut',
+    first in the local directory given by root, if any, then among the
+    files of the server with the LUT mimetype. Whether a LUT file has
+    changed, by its modification time and size, or for files of the server
+    its size and hash, is checked at most every checkInterval seconds, so
+    that a lookup does no I/O the rest of the time. LUTs which have changed
+    are parsed again. Names which are not found are also remembered for
+    checkInterval seconds, so that a missing LUT is not searched for on
+    every render.
+    """
+
+    def __init__(self, root=None, checkInterval=60):
+        """
+        :param root:            Local directory of LUT files, e.g. the luts
+                                directory of the OMERO distribution
+        :param checkInterval:   Seconds between checks for changed files
+        """
+        self.root = root
+        self.checkInterval = checkInterval
+        # name: [source, stamp, table, checked]
+        self._luts = {}
+        # name: (checked, whether the server was searched)
+        self._missing = {}
+        self._localPaths = None
+        self._lock = threading.Lock()
+        self.hits = 0
+        self.misses = 0
+        self.loads = 0
+        self.reloads = 0
+        self.loadTime = 0.0
+
+    def _findLocal(self, name):
+        """
+        Returns the path of a LUT in the root directory, or None.
+        """
+        if self.root is None:
+            return None
+        path = os.path.join(self.root, name)
+        if os.path.isfile(path):
+            return path
+        filename = os.path.basename(name)
+        if self._localPaths is None or filename not in self._localPaths:
+            # Index the names of the subdirectories, e.g. of 'cool.lut'
+            localPaths = {}
+            for dirpath, dirnames, filenames in os.walk(self.root):
+                for f in sorted(filenames):
+                    localPaths.setdefault(f, os.path.join(dirpath, f))
+            self._localPaths = localPaths
+        return self._localPaths.get(filename)
+
+    def _findRemote(self, name, conn):
+        """
+        Returns the OriginalFile of the server LUT with this name or path,
+        relative to the luts directory, or None.
+        """
+        if conn is None:
+            return None
+        scriptService = conn.getScriptService()
+        files = scriptService.getScriptsByMimetype(LUT_MIMETYPE)
+        name = name.lstrip('/')
+        byName = None
+        for f in files:
+            path = (f.path.val + f.name.val).lstrip('/')
+            if path == name or path == 'luts/' + name:
+                return f
+            if byName is None and f.name.val == os.path.basename(name):
+                byName = f
+        return byName
+
+    def _getContext(self, conn):
+        """
+        Returns a context to read the LUT files of any group.
+        """
+        ctx = conn.SERVICE_OPTS.copy()
+        ctx.setOmeroGroup(-1)
+        return ctx
+
+    def _stamp(self, source, conn):
+        """
+        Returns what tells whether a LUT file has changed, and its source
+        which may be None if the file is gone.
+        """
+        kind, location = source
+        if kind == 'file':
+            try:
+                st = os.stat(location)
+            except OSError:
+                return None, None
+            return source, (st.st_mtime, st.st_size)
+        f = conn.getQueryService().find(
+            'OriginalFile', location, self._getContext(conn))
+        if f is None:
+            return None, None
+        return source, (f.getSize().val,
+                        f.getHash() and f.getHash().val)
+
+    def _read(self, source, conn):
+        """
+        Returns the content of a LUT file.
+        """
+        kind, location = source
+        if kind == 'file':
+            with open(location, 'rb') as f:
+                return f.read()
+        rawFileStore = conn.createRawFileStore()
+        try:
+            rawFileStore.setFileId(location, self._getContext(conn))
+            return rawFileStore.read(0, rawFileStore.size())
+        finally:
+            rawFileStore.close()
+
+    def _locate(self, name, conn):
+        path = self._findLocal(name)
+        if path is not None:
+            return ('file', path)
+        f = self._findRemote(name, conn)
+        if f is not None:
+            return ('server', f.id.val)
+        return None
+
+    def getLut(self, name, conn=None):
+        """
+        Returns the parsed lookup table with this name.
+
+        :param name:    LUT name, e.g. 'fire.lut'
+        :param conn:    :class:`BlitzGateway` to find LUTs on the server,
+                        if they are not in the root directory
+        :return:        Read-only numpy uint8 array of shape (256, 3), or
+                        None if there is no such LUT
+        """
+        now = time.time()
+        with self._lock:
+            entry = self._luts.get(name)
+            # Files of the server can't be checked without a connection
+            if entry is not None and (
+                    now - entry[3] < self.checkInterval or
+                    (entry[0][0] == 'server' and conn is None)):
+                self.hits += 1
+                return entry[2]
+            missing = self._missing.get(name)
+            if entry is None and missing is not None and (
+                    now - missing[0] < self.checkInterval and
+                    (missing[1] or conn is None)):
+                self.hits += 1
+                return None
+        if entry is not None:
+            source, stamp = self._stamp(entry[0], conn)
+            if source is not None and stamp == entry[1]:
+                with self._lock:
+                    entry[3] = now
+                    self.hits += 1
+                return entry[2]
+        with self._lock:
+            self.misses += 1
+        source = self._locate(name, conn)
+        if source is not None:
+            start = time.time()
+            source, stamp = self._stamp(source, conn)
+        table = None
+        if source is not None:
+            try:
+                table = parseLut(self._read(source, conn))
+            except Exception:
+                logger.error("Failed to load LUT %s" % name, exc_info=True)
+        if table is None:
+            with self._lock:
+                self._luts.pop(name, None)
+                self._missing[name] = (now, conn is not None)
+            return None
+        with self._lock:
+            self._missing.pop(name, None)
+            self.loadTime += time.time() - start
+            if entry is None:
+                self.loads += 1
+            else:
+                self.reloads += 1
+            self._luts[name] = [source, stamp, table, now]
+        return table
+
+    def clear(self):
+        """
+        Forgets all the LUTs.
+        """
+        with self._lock:
+            self._luts.clear()
+            self._missing.clear()
+            self._localPaths = None
+
+    def getStats(self):
+        """
+        Returns a dict of the lookup counts and loading time, to tell how
+        well the registry works.
+        """
+        with self._lock:
+            return {'hits': self.hits,
+                    'misses': self.misses,
+                    'loads': self.loads,
+                    'reloads': self.reloads,
+                    'loadTime': self.loadTime,
+                    'entries': len(self._luts),
+                    'missing': len(self._missing)}
+
+
+_lutRegistry = None
+_sharedLock = threading.Lock()
+
+
+def getLutRegistry():
+    """
+    Returns the LutRegistry shared by the process, reading local LUTs from
+    lib/scripts/luts in OMERO_HOME if it exists.
+    """
+    global _lutRegistry
+    with _sharedLock:
+        if _lutRegistry is None:
+            root = None
+            home = os.environ.get('OMERO_HOME')
+            if home:
+                root = os.path.join(home, 'lib', 'scripts', 'luts')
+                if not os.path.isdir(root):
+                    root = None
+            _lutRegistry = LutRegistry(root)
+        return _lutRegistry
+
+
+# Range of the values of the integer pixels types which are quantized with
+# a lookup table
+QUANTUM_MAP_RANGES = {'int8': (-2 ** 7, 2 ** 7 - 1),
+                      'uint8': (0, 2 ** 8 - 1),
+                      'int16': (-2 ** 15, 2 ** 15 - 1),
+                      'uint16': (0, 2 ** 16 - 1)}
+
+# Share of the window mapped to the ends of the codomain by noise reduction
+NOISE_REDUCTION_DECILE = 0.1
+
+# Number of steps the window is split into before being mapped to the
+# codomain, as the bit resolution of the server's quantum definition
+QUANTUM_BIT_RESOLUTION = 255
+
+
+class ChannelSettings(object):
+
+    """
+    Rendering settings of a channel, as used by :func:`quantize` and
+    :func:`renderChannels`.
+    """
+
+    def __init__(self, windowStart, windowEnd, family='linear',
+                 coefficient=1.0, noiseReduction=False, rgba=None,
+                 lut=None, reverse=False, active=True):
+        """
+        :param windowStart:     Start of the rendering window
+        :param windowEnd:       End of the rendering window
+        :param family:          'linear', 'polynomial', 'exponential' or
+                                'logarithmic'
+        :param coefficient:     Curve coefficient of the polynomial and
+                                exponential families
+        :param noiseReduction:  If True, the values in the lowest and
+                                highest deciles of the window are mapped to
+                                the ends of the codomain
+        :param rgba:            Colour of the channel as (r, g, b, a)
+        :param lut:             Lookup table of shape (256, 3) used instead
+                                of the colour, see :class:`LutRegistry`
+        :param reverse:         If True, the intensities are reversed
+        :param active:          If False the channel is not rendered
+        """
+        self.windowStart = windowStart
+        self.windowEnd = windowEnd
+        self.family = family
+        self.coefficient = coefficient
+        self.noiseReduction = noiseReduction
+        self.rgba = rgba or (255, 255, 255, 255)
+        self.lut = lut
+        self.reverse = reverse
+        self.active = active
+
+    def getQuantumKey(self, pixelsType, cdStart=0, cdEnd=255):
+        """
+        Returns the key of the quantum map of these settings in a
+        :class:`QuantumMapCache`.
+        """
+        return (pixelsType, float(self.windowStart), float(self.windowEnd),
+                self.family, float(self.coefficient),
+                bool(self.noiseReduction), bool(self.reverse),
+                int(cdStart), int(cdEnd))
+
+
+def _mapValues(values, settings, cdStart, cdEnd):
+    """
+    Maps the values of a channel to the codomain [cdStart, cdEnd] with the
+    quantum map of the channel settings, as the server does: the function
+    of the family is applied to the raw values, scaled between its values
+    at the start and end of the window to the bit resolution, then to the
+    codomain, rounding each step half up. The window of a function which
+    is not defined over all of it, e.g. the logarithm of a window starting
+    at 0, is first shifted to start at the lowest value the function takes.
+    """
+    import numpy
+    start = float(settings.windowStart)
+    end = float(settings.windowEnd)
+    if settings.noiseReduction:
+        decile = NOISE_REDUCTION_DECILE * (end - start)
+        start, end = start + decile, end - decile
+    x = numpy.clip(numpy.asarray(values, dtype=numpy.float64), start, end)
+    if end <= start:
+        t = numpy.where(numpy.asarray(values) < start, 0.0, 1.0)
+    else:
+        k = float(settings.coefficient)
+        family = settings.family
+        lowest = {'polynomial': 0.0, 'exponential': 0.0,
+                  'logarithmic': 1.0}.get(family)
+        if lowest is not None and start < lowest:
+            x += lowest - start
+            start, end = lowest, end + lowest - start
+        if family == 'polynomial':
+            t = (x ** k - start ** k) / (end ** k - start ** k)
+        elif family == 'exponential':
+            # exp(x^k) overflows, so both sides are divided by exp(end^k)
+            offset = start ** k - end ** k
+            t = ((numpy.exp(x ** k - end ** k) - numpy.exp(offset)) /
+                 -numpy.expm1(offset))
+        elif family == 'logarithmic':
+            t = numpy.log(x / start) / numpy.log(end / start)
+        else:
+            t = (x - start) / (end - start)
+    v = numpy.floor(t * QUANTUM_BIT_RESOLUTION + 0.5)
+    v = numpy.floor(
+        v * (cdEnd - cdStart) / float(QUANTUM_BIT_RESOLUTION) + cdStart + 0.5)
+    if settings.reverse:
+        v = cdStart + cdEnd - v
+    return v.astype(numpy.uint8)
+
+
+def quantize(data, pixelsType, settings, cdStart=0, cdEnd=255, cache=None,
+             out=None, buffers=None):
+    """
+    Maps the raw values of a channel to 8 bit intensities in the codomain
+    [cdStart, cdEnd].
+
+    For the integer pixels types of at most 16 bits the quantum map of the
+    settings is a lookup table of every possible value, computed once and
+    kept in the cache, so that quantizing a plane is a single lookup per
+    pixel.
+
+    :param data:        numpy array of raw values
+    :param pixelsType:  Pixels type, e.g. 'uint16'
+    :param settings:    :class:`ChannelSettings` of the channel
+    :param cache:       :class:`QuantumMapCache`, default is the one shared
+                        by the process
+    :param out:         numpy uint8 array of the shape of data to write the
+                        intensities to
+    :param buffers:     :class:`RenderBuffers` holding the scratch arrays
+                        of the lookups
+    :return:            numpy uint8 array of the shape of data
+    """
+    import numpy
+    valueRange = QUANTUM_MAP_RANGES.get(pixelsType)
+    if valueRange is None:
+        if out is None:
+            return _mapValues(data, settings, cdStart, cdEnd)
+        out[...] = _mapValues(data, settings, cdStart, cdEnd)
+        return out
+    if cache is None:
+        cache = getQuantumMapCache()
+    lowest, highest = valueRange
+
+    def build():
+        return _mapValues(numpy.arange(lowest, highest + 1), settings,
+                          cdStart, cdEnd)
+    table = cache.get(settings.getQuantumKey(pixelsType, cdStart, cdEnd),
+                      build)
+    if buffers is None:
+        index = data.astype(numpy.intp)
+    else:
+        index = buffers.get('index', data.shape, numpy.intp)
+        index[...] = data
+    if lowest:
+        index -= lowest
+    return numpy.take(table, index, out=out, mode='clip')
+
+
+class QuantumMapCache(object):
+
+    """
+    Least recently used cache of the lookup tables built by
+    :func:`quantize`, bounded by the number of tables. Tables are keyed
+    by the channel settings they are built from, not by image, so that they
+    are shared by all the images and users rendered with the same settings.
+    """
+
+    def __init__(self, maxEntries=256):
+        self.maxEntries = maxEntries
+        self._entries = OrderedDict()
+        self._lock = threading.Lock()
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+
+    def __len__(self):
+        with self._lock:
+            return len(self._entries)
+
+    def get(self, key, build):
+        """
+        Returns the table of key, calling build() to make it if it is not
+        in the cache.
+        """
+        with self._lock:
+            table = self._entries.pop(key, None)
+            if table is not None:
+                self._entries[key] = table
+                self.hits += 1
+                return table
+            self.misses += 1
+        table = build()
+        table.flags.writeable = False
+        with self._lock:
+            self._entries[key] = table
+            while len(self._entries) > self.maxEntries:
+                self._entries.popitem(last=False)
+                self.evictions += 1
+        return table
+
+    def clear(self):
+        with self._lock:
+            self._entries.clear()
+
+    def getStats(self):
+        """
+        Returns a dict of the hit and miss counts and of the size of the
+        cache, to help sizing it.
+        """
+        with self._lock:
+            return {'hits': self.hits,
+                    'misses': self.misses,
+                    'evictions': self.evictions,
+                    'entries': len(self._entries),
+                    'bytes': sum(t.nbytes for t in self._entries.values()),
+                    'maxEntries': self.maxEntries}
+
+
+_quantumMapCache = None
+
+
+def getQuantumMapCache():
+    """
+    Returns the QuantumMapCache shared by the process.
+    """
+    global _quantumMapCache
+    with _sharedLock:
+        if _quantumMapCache is None:
+            _quantumMapCache = QuantumMapCache()
+        return _quantumMapCache
+
+
+class RenderBuffers(object):
+
+    """
+    Scratch arrays reused by :func:`renderChannels` from one call to the
+    next, so that rendering frames of the same size does not allocate
+    memory once the first one is done. A RenderBuffers must not be used by
+    several threads at the same time.
+    """
+
+    def __init__(self):
+        self._arrays = {}
+        self._colourTables = {}
+        self.allocations = 0
+
+    def get(self, name, shape, dtype):
+        """
+        Returns the scratch array called name, allocating a new one if the
+        shape or type changed since the last call.
+        """
+        import numpy
+        dtype = numpy.dtype(dtype)
+        array = self._arrays.get(name)
+        if array is None or array.shape != shape or array.dtype != dtype:
+            array = numpy.empty(shape, dtype=dtype)
+            self._arrays[name] = array
+            self.allocations += 1
+        return array
+
+    def getColourTable(self, rgba):
+        """
+        Returns the lookup table of shape (256, 3) scaling the colour rgba
+        by each 8 bit intensity.
+        """
+        import numpy
+        table = self._colourTables.get(rgba)
+        if table is None:
+            red, green, blue, alpha = rgba
+            colour = numpy.array([red, green, blue], dtype=numpy.int64)
+            intensities = numpy.arange(256, dtype=numpy.int64)
+            table = (intensities[:, numpy.newaxis] * colour * alpha //
+                     (255 * 255)).astype(numpy.uint8)
+            self._colourTables[rgba] = table
+        return table
+
+    def clear(self):
+        self._arrays.clear()
+        self._colourTables.clear()
+
+
+def packedIntBuffer(shape, out=None):
+    """
+    Returns out after checking that it can hold packed ARGB values of the
+    given shape, or a new array if out is None.
+    """
+    import numpy
+    shape = tuple(shape)
+    if out is None:
+        return numpy.empty(shape, dtype=numpy.uint32)
+    if (out.shape != shape or out.dtype != numpy.uint32 or
+            not out.flags.c_contiguous):
+        raise ValueError(
+            "out must be a contiguous uint32 array of shape %s, not %s of "
+            "shape %s" % (shape, out.dtype.name, out.shape))
+    return out
+
+
+def renderChannels(planes, pixelsType, channels, greyscale=False,
+                   cdStart=0, cdEnd=255, cache=None, out=None, buffers=None):
+    """
+    Renders the planes of the channels of an image as packed ARGB values,
+    in the same layout as RenderingEngine.renderAsPackedInt(): the colour of
+    each active channel, or its lookup table, is scaled by its quantized
+    intensity and the channels are added up, saturating at 255.
+
+    If out and buffers are given, rendering a plane of integer pixels does
+    not allocate any array once the buffers are set up by a first call.
+
+    :param planes:      2D numpy arrays of raw values, one per channel;
+                        the planes of inactive channels are not used and
+                        may be None
+    :param pixelsType:  Pixels type, e.g. 'uint16'
+    :param channels:    :class:`ChannelSettings` of each channel
+    :param greyscale:   If True, render the first active channel in grey
+    :param out:         Contiguous numpy uint32 array of the shape of the
+                        planes to render into, see :func:`packedIntBuffer`
+    :param buffers:     :class:`RenderBuffers` to reuse
+    :return:            numpy uint32 array of the shape of the planes
+    """
+    import numpy
+    if buffers is None:
+        buffers = RenderBuffers()
+    active = [(plane, settings) for plane, settings in zip(planes, channels)
+              if settings.active]
+    if greyscale:
+        active = active[:1]
+    shape = next(plane.shape for plane in planes if plane is not None)
+    out = packedIntBuffer(shape, out)
+    rgb = buffers.get('rgb', shape + (3,), numpy.uint16)
+    rgb.fill(0)
+    quantized = buffers.get('quantized', shape, numpy.uint8)
+    colours = buffers.get('colours', shape + (3,), numpy.uint8)
+    for plane, settings in active:
+        quantize(plane, pixelsType, settings, cdStart, cdEnd, cache,
+                 out=quantized, buffers=buffers)
+        if greyscale:
+            table = buffers.getColourTable((255, 255, 255, 255))
+        elif settings.lut is not None:
+            table = settings.lut
+        else:
+            table = buffers.getColourTable(tuple(settings.rgba))
+        numpy.take(table, quantized, axis=0, out=colours, mode='clip')
+        rgb += colours
+    numpy.minimum(rgb, 255, out=rgb)
+    packed = buffers.get('packed', shape, numpy.uint32)
+    out.fill(0xff000000)
+    for i, shift in enumerate((16, 8, 0)):
+        packed[...] = rgb[..., i]
+        packed <<= shift
+        out |= packed
+    return out
+
+
+ENCODINGS = ('jpeg', 'png', 'deflate')
+
+
+def _rgbRawMode():
+    """
+    Returns the Pillow raw mode of the RGB values of packed ARGB ints in
+    memory.
+    """
+    import sys
+    return sys.byteorder == 'little' and 'BGRX' or 'XRGB'
+
+
+class ImageEncoder(object):
+
+    """
+    Encodes packed ARGB arrays, as returned by :func:`renderChannels`, as
+    JPEG, PNG or raw deflate. 'deflate' is the raw deflate stream (RFC 1951)
+    of the 8 bit RGB values of the rows, a cheap lossless encoding for
+    analysis clients.
+
+    Each thread encodes into its own output stream and scratch array,
+    reused for its next frame. :meth:`encodeAll` encodes several frames in
+    parallel and :meth:`encode` deflates big images in parallel strips,
+    each a fully flushed part of the same stream. Pillow and zlib release
+    the interpreter lock while encoding, so the threads do run at the same
+    time.
+    """
+
+    def __init__(self, encoding='jpeg', quality=0.9, threads=4,
+                 stripHeight=256, compressLevel=1):
+        """
+        :param encoding:        'jpeg', 'png' or 'deflate'
+        :param quality:         JPEG quality from 0 to 1, as for
+                                RenderingEngine.setCompressionLevel()
+        :param threads:         Number of encoding threads
+        :param stripHeight:     Number of rows of the strips deflated in
+                                parallel
+        :param compressLevel:   zlib level of 'png' and 'deflate'
+        """
+        if encoding not in ENCODINGS:
+            raise ValueError("encoding must be one of %s, not %r"
+                             % (", ".join(ENCODINGS), encoding))
+        self.encoding = encoding
+        self.quality = quality
+        self.threads = max(1, threads)
+        self.stripHeight = max(1, stripHeight)
+        self.compressLevel = compressLevel
+        self._local = threading.local()
+        self._lock = threading.Lock()
+        self._pool = None
+        self.frames = 0
+        self.bytes = 0
+        self.encodeTime = 0.0
+
+    def _getPool(self):
+        with self._lock:
+            if self._pool is None:
+                from multiprocessing.pool import ThreadPool
+                self._pool = ThreadPool(self.threads)
+            return self._pool
+
+    def _getStream(self):
+        """
+        Returns the empty output stream of the current thread.
+        """
+        stream = getattr(self._local, 'stream', None)
+        if stream is None:
+            from cStringIO import StringIO
+            stream = self._local.stream = StringIO()
+        stream.seek(0)
+        stream.truncate()
+        return stream
+
+    def _getRgb(self, argb):
+        """
+        Copies the RGB values of argb into the scratch array of the current
+        thread.
+        """
+        import numpy
+        shape = argb.shape + (3,)
+        rgb = getattr(self._local, 'rgb', None)
+        if rgb is None or rgb.shape != shape:
+            rgb = self._local.rgb = numpy.empty(shape, dtype=numpy.uint8)
+        channels = argb.view(numpy.uint8).reshape(argb.shape + (4,))
+        if _rgbRawMode() == 'BGRX':
+            rgb[...] = channels[..., 2::-1]
+        else:
+            rgb[...] = channels[..., 1:]
+        return rgb
+
+    def _deflate(self, argb, final=True):
+        import zlib
+        compressor = zlib.compressobj(
+            self.compressLevel, zlib.DEFLATED, -zlib.MAX_WBITS)
+        data = compressor.compress(buffer(self._getRgb(argb)))
+        if final:
+            return data + compressor.flush(zlib.Z_FINISH)
+        # Byte aligned, so that the next strip can be appended
+        return data + compressor.flush(zlib.Z_FULL_FLUSH)
+
+    def _deflateStrip(self, args):
+        argb, final = args
+        return self._deflate(argb, final)
+
+    def _encode(self, argb, parallel=False):
+        import numpy
+        argb = numpy.ascontiguousarray(argb, dtype=numpy.uint32)
+        if self.encoding == 'deflate':
+            height = argb.shape[0]
+            if not parallel or height <= self.stripHeight:
+                return self._deflate(argb)
+            strips = [(argb[top:top + self.stripHeight],
+                        top + self.stripHeight >= height)
+                      for top in range(0, height, self.stripHeight)]
+            return "".join(self._getPool().map(self._deflateStrip, strips))
+        try:
+            from PIL import Image
+        except ImportError:  # pragma: nocover
+            import Image
+        height, width = argb.shape
+        image = Image.frombuffer('RGB', (width, height), argb, 'raw',
+                                 _rgbRawMode(), 0, 1)
+        stream = self._getStream()
+        if self.encoding == 'jpeg':
+            image.save(stream, 'jpeg',
+                       quality=int(round(self.quality * 100)))
+        else:
+            image.save(stream, 'png', compress_level=self.compressLevel)
+        return stream.getvalue()
+
+    def _timedEncode(self, argb, parallel=False):
+        startTime = time.time()
+        data = self._encode(argb, parallel)
+        elapsed = time.time() - startTime
+        with self._lock:
+            self.frames += 1
+            self.bytes += len(data)
+            self.encodeTime += elapsed
+        return data
+
+    def encode(self, argb):
+        """
+        Encodes a 2D array of packed ARGB values.
+
+        :return:    The encoded bytes
+        """
+        return self._timedEncode(argb, True)
+
+    def encodeAll(self, arrays):
+        """
+        Encodes 2D arrays of packed ARGB values in parallel.
+
+        :return:    List of the encoded bytes, in the order of arrays
+        """
+        arrays = list(arrays)
+        if len(arrays) < 2 or self.threads < 2:
+            return [self.encode(argb) for argb in arrays]
+        return self._getPool().map(self._timedEncode, arrays)
+
+    def getStats(self):
+        """
+        Returns a dict of the number of frames and bytes encoded and of the
+        time spent encoding them.
+        """
+        with self._lock:
+            return {'frames': self.frames,
+                    'bytes': self.bytes,
+                    'encodeTime': self.encodeTime}
+
+    def close(self):
+        """
+        Stops the encoding threads.
+        """
+        with self._lock:
+            if self._pool is not None:
+                self._pool.close()
+                self._pool.join()
+                self._pool = None
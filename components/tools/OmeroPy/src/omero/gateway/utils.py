@@ -25,6 +25,8 @@
 
 import logging
 import json
+import threading
+from collections import OrderedDict
 
 logger = logging.getLogger(__name__)
 
@@ -46,6 +48,263 @@ class GatewayConfig(object):
         self.IMG_ROPTSNS = None
 
 
+class PixelsCache(object):
+
+    """
+    Least recently used cache of raw pixel data, as returned by the
+    RawPixelsStore, bounded by the total number of bytes held.
+
+    Keys are tuples starting with the pixels ID, e.g.
+    (pixelsId, resolutionLevel, z, c, t, region), so that all the entries
+    of a pixels set can be dropped with :meth:`invalidate` when it is
+    written to.
+    """
+
+    def __init__(self, maxBytes):
+        self.maxBytes = maxBytes
+        self._entries = OrderedDict()
+        self._bytes = 0
+        self._lock = threading.Lock()
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+
+    def __contains__(self, key):
+        with self._lock:
+            return key in self._entries
+
+    def __len__(self):
+        return len(self._entries)
+
+    def get(self, key):
+        """
+        Returns the data cached for key, marking it as most recently used,
+        or None.
+        """
+        with self._lock:
+            data = self._entries.pop(key, None)
+            if data is None:
+                self.misses += 1
+                return None
+            self._entries[key] = data
+            self.hits += 1
+            return data
+
+    def put(self, key, data):
+        """
+        Caches data for key, evicting the least recently used entries until
+        the total size fits in maxBytes. Data larger than maxBytes on its
+        own is not cached.
+        """
+        if len(data) > self.maxBytes:
+            return
+        with self._lock:
+            old = self._entries.pop(key, None)
+            if old is not None:
+                self._bytes -= len(old)
+            self._entries[key] = data
+            self._bytes += len(data)
+            while self._bytes > self.maxBytes:
+                evictedKey, evicted = self._entries.popitem(last=False)
+                self._bytes -= len(evicted)
+                self.evictions += 1
+
+    def invalidate(self, pixelsId):
+        """
+        Removes all the entries for the given pixels ID.
+        """
+        with self._lock:
+            for key in [k for k in self._entries if k[0] == pixelsId]:
+                self._bytes -= len(self._entries.pop(key))
+
+    def clear(self):
+        """Removes all the entries."""
+        with self._lock:
+            self._entries.clear()
+            self._bytes = 0
+
+    def getStats(self):
+        """
+        Returns a dict of the hit, miss and eviction counters and the ratio
+        of hits to lookups, along with the number of entries and bytes
+        currently held.
+        """
+        with self._lock:
+            lookups = self.hits + self.misses
+            return {'hits': self.hits,
+                    'misses': self.misses,
+                    'hitRatio': lookups and float(self.hits) / lookups or 0.0,
+                    'evictions': self.evictions,
+                    'entries': len(self._entries),
+                    'bytes': self._bytes,
+                    'maxBytes': self.maxBytes}
+
+
+class IdlePool(object):
+
+    """
+    Keeps up to maxIdle objects which are expensive to set up, such as
+    stateful services, for reuse once their current user is done with them.
+    Objects put in a full pool are closed with close(obj).
+    """
+
+    def __init__(self, maxIdle, close):
+        self.maxIdle = maxIdle
+        self._close = close
+        self._idle = []
+        self._lock = threading.Lock()
+        self.hits = 0
+        self.misses = 0
+
+    def __len__(self):
+        return len(self._idle)
+
+    def get(self):
+        """
+        Returns the most recently put object, or None if the pool is empty.
+        """
+        with self._lock:
+            if not self._idle:
+                self.misses += 1
+                return None
+            self.hits += 1
+            return self._idle.pop()
+
+    def put(self, obj):
+        """
+        Keeps obj for reuse, or closes it if the pool is full.
+        """
+        with self._lock:
+            if len(self._idle) < self.maxIdle:
+                self._idle.append(obj)
+                return
+        self.discard(obj)
+
+    def clear(self):
+        """Closes all the objects of the pool."""
+        with self._lock:
+            idle, self._idle = self._idle, []
+        for obj in idle:
+            self.discard(obj)
+
+    def discard(self, obj):
+        """Closes obj, e.g. an object taken from the pool which failed."""
+        try:
+            self._close(obj)
+        except Exception:
+            logger.debug("Failed to close pooled object", exc_info=True)
+
+    def getStats(self):
+        """
+        Returns a dict of the hit and miss counters and of the number of
+        idle objects.
+        """
+        with self._lock:
+            return {'hits': self.hits,
+                    'misses': self.misses,
+                    'idle': len(self._idle),
+                    'maxIdle': self.maxIdle}
+
+
+def coalesceRanges(offsets, sizes, maxGap=0, maxSize=None):
+    """
+    Sorts the byte ranges given by offsets and sizes and merges those
+    which overlap, touch or are separated by at most maxGap bytes, so that
+    they can be read with fewer, sequential requests.
+
+    :param offsets:     Start of each range
+    :param sizes:       Size of each range
+    :param maxGap:      Largest gap between two ranges to be merged
+    :param maxSize:     Ranges are not merged beyond this size, if set
+    :return:            List of (offset, size, parts) for each merged range
+                        where parts is a list of (index, start) giving the
+                        index of the original range in offsets and its start
+                        relative to offset
+    """
+    merged = []
+    for i in sorted(range(len(offsets)), key=lambda i: offsets[i]):
+        start = offsets[i]
+        end = start + sizes[i]
+        if merged:
+            last = merged[-1]
+            if (start <= last[1] + maxGap and
+                    (maxSize is None or max(end, last[1]) - last[0] <=
+                     maxSize)):
+                last[1] = max(last[1], end)
+                last[2].append((i, start - last[0]))
+                continue
+        merged.append([start, end, [(i, 0)]])
+    return [(start, end - start, parts) for start, end, parts in merged]
+
+
+class ChannelStats(object):
+
+    """
+    Running statistics of the values of a channel: count, min, max, mean
+    and variance, updated one block of values at a time so that no second
+    pass over the data is needed. The blocks are combined with the
+    pairwise algorithm of Chan et al. which stays accurate for big counts.
+    """
+
+    def __init__(self):
+        self.count = 0
+        self.min = None
+        self.max = None
+        self.mean = 0.0
+        self._m2 = 0.0
+
+    def update(self, data):
+        """
+        Adds the values of a numpy array.
+        """
+        if data.size == 0:
+            return
+        other = ChannelStats()
+        other.count = data.size
+        other.min = float(data.min())
+        other.max = float(data.max())
+        other.mean = float(data.mean(dtype='float64'))
+        other._m2 = float(data.var(dtype='float64')) * data.size
+        self.merge(other)
+
+    def merge(self, other):
+        """
+        Adds the values counted by another ChannelStats.
+        """
+        if other.count == 0:
+            return
+        if self.count == 0:
+            self.min, self.max = other.min, other.max
+        else:
+            self.min = min(self.min, other.min)
+            self.max = max(self.max, other.max)
+        count = self.count + other.count
+        delta = other.mean - self.mean
+        self.mean += delta * other.count / count
+        self._m2 += (other._m2 +
+                     delta * delta * self.count * other.count / count)
+        self.count = count
+
+    def getVariance(self):
+        """
+        Returns the population variance of the values, None if there are
+        none.
+        """
+        if self.count == 0:
+            return None
+        return self._m2 / self.count
+
+    def getStdDev(self):
+        """
+        Returns the population standard deviation of the values, None if
+        there are none.
+        """
+        variance = self.getVariance()
+        if variance is None:
+            return None
+        return variance ** 0.5
+
+
 class ServiceOptsDict(dict):
 
     def __new__(cls, *args, **kwargs):
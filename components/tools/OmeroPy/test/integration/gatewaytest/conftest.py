@@ -1 +1,24 @@
+import pytest
+from omero.testlib import ITest
+
 pytest_plugins = "omero.gateway.pytest_fixtures"
+
+
+@pytest.fixture(scope='module')
+def itest(request):
+    """
+    Returns a new L{library.ITest} instance. With attached
+    finalizer so that pytest will clean it up.
+    """
+    class GatewayITest(ITest):
+        """
+        This class emulates py.test scoping semantics when the xunit style
+        is in use.
+        """
+        pass
+    GatewayITest.setup_class()
+
+    def finalizer():
+        GatewayITest.teardown_class()
+    request.addfinalizer(finalizer)
+    return GatewayITest()
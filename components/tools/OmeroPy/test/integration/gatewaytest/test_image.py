@@ -14,9 +14,12 @@
 
 """
 
+import zlib
+import numpy
 import pytest
 from cStringIO import StringIO
 import omero
+from omero.gateway.rendering import getQuantumMapCache
 
 try:
     from PIL import Image  # see ticket:2597
@@ -100,6 +103,85 @@ class TestImage (object):
                 image_ids=[badimg_id])[badimg_id]
         # Big image (4k x 4k and up) thumb
 
+    @pytest.mark.parametrize("workers", [1, 3])
+    def testIterThumbnailSet(self, author_testimg_tiny, author_testimg_big,
+                             workers):
+        img_ids = [self.image.id, author_testimg_tiny.id,
+                   author_testimg_big.id]
+        conn = self.image._conn
+        expected = conn.getThumbnailSet(img_ids, workers=1)
+        assert sorted(expected) == sorted(img_ids)
+        streamed = list(conn.iterThumbnailSet(img_ids, workers=workers,
+                                              chunkSize=1))
+        assert len(streamed) == len(img_ids)
+        assert dict(streamed) == expected
+        assert conn.getThumbnailSet(img_ids, workers=workers,
+                                    chunkSize=2) == expected
+        assert conn.getThumbnailSet(img_ids, workers=workers,
+                                    byGroup=False) == expected
+        for v in conn.c.getSession().activeServices():
+            assert 'ThumbnailStore' not in v, 'Leaked thumbnail store!'
+
+    def testThumbnailCache(self, author_testimg_tiny):
+        img_ids = [self.image.id, author_testimg_tiny.id]
+        conn = self.image._conn
+        # Make sure both images have rendering settings
+        expected = conn.getThumbnailSet(img_ids)
+        cache = conn.enableThumbnailCache()
+        try:
+            assert conn.getThumbnailSet(img_ids) == expected
+            assert cache.getStats()['misses'] == 2
+            assert conn.getThumbnailSet(img_ids) == expected
+            stats = cache.getStats()
+            assert stats['hits'] == 2
+            assert stats['hitRatio'] == 0.5
+            assert stats['bytes'] == sum(len(t) for t in expected.values())
+            # Other sizes are cached separately
+            conn.getThumbnailSet(img_ids, max_size=32)
+            assert cache.getStats()['entries'] == 4
+            self.image.resetDefaults()
+            assert cache.getStats()['entries'] == 2
+            # A new version of the settings of the first image
+            hits = cache.getStats()['hits']
+            conn.getThumbnailSet(img_ids)
+            assert cache.getStats()['hits'] == hits + 1
+            assert cache.getStats()['entries'] == 3
+            conn.applySettingsToSet(self.image.id, 'Image',
+                                    [author_testimg_tiny.id])
+            assert cache.getStats()['entries'] == 1
+        finally:
+            conn.disableThumbnailCache()
+
+    def testThumbnailPrecomputer(self, author_testimg_tiny,
+                                 author_testimg_bad):
+        from omero.gateway import ThumbnailPrecomputer
+        conn = self.image._conn
+        img_ids = [self.image.id, author_testimg_tiny.id,
+                   author_testimg_bad.id]
+        precomputer = ThumbnailPrecomputer(conn, sizes=(48, 96),
+                                           batchSize=2, maxQueued=2)
+        assert precomputer.add(img_ids) == 2
+        precomputer.start()
+        try:
+            assert precomputer._workerConn is not conn
+            precomputer.add(img_ids[2:], block=True)
+            # The caller's connection is free meanwhile
+            assert conn.getObject("Image", self.image.id) is not None
+        finally:
+            precomputer.stop()
+        assert precomputer._workerConn is None
+        # Closing the worker's connection leaves the session open
+        assert conn.keepAlive()
+        stats = precomputer.getStats()
+        assert stats['queued'] == 3
+        assert stats['dropped'] == 1
+        assert stats['pending'] == 0
+        assert stats['batches'] == 2
+        assert stats['thumbnails'] == 4
+        # No pixels, so no thumbnails
+        assert stats['failed'] == 2
+        assert ThumbnailPrecomputer(conn).sizes
+
     def testRenderingModels(self):
         # default is color model
         cimg = self.image.renderJpeg(0, 0)
@@ -408,6 +490,184 @@ class TestImage (object):
         img = self.image.renderJpegRegion(0, 0, 0, 0, width, height, level=1)
         assert img is None
 
+    @pytest.mark.parametrize("bands", [2, 3])
+    def testRenderPackedIntBands(self, gatewaywrapper, bands):
+        image = self.image
+        # Settings which are not saved must be used by all the engines
+        image.set_active_channels([1, 2], [[20, 300], [50, 100]],
+                                  ['FF0000', '00FF00'])
+        image.setChannelInverted(1, True)
+        single = image.renderPackedInt(0, 0, 5, 3, 40, 31)
+        assert single.shape == (31, 40)
+        split = image.renderPackedInt(0, 0, 5, 3, 40, 31, bands=bands)
+        assert split.tostring() == single.tostring()
+        out = numpy.zeros((31, 40), dtype=numpy.uint32)
+        rendered = image.renderPackedInt(0, 0, 5, 3, 40, 31, bands=bands,
+                                         out=out)
+        assert rendered is out
+        assert (out == single).all()
+        whole = image.renderPackedInt(0, 0, bands=bands)
+        assert whole.shape == (image.getSizeY(), image.getSizeX())
+        assert (whole[3:34, 5:45] == single).all()
+
+    def testRenderLocalPackedInt(self, gatewaywrapper):
+        image = self.image
+        image.set_active_channels([1, 2], [[20, 300], [50, 100]],
+                                  ['FF0000', '00FF00'])
+        image.setChannelInverted(1, True)
+        greyscale, cdStart, cdEnd, channels = image.getChannelSettings()
+        assert not greyscale
+        assert [c.active for c in channels][:2] == [True, True]
+        assert channels[0].reverse
+        assert (channels[1].windowStart, channels[1].windowEnd) == (50, 100)
+        cache = getQuantumMapCache()
+        local = image.renderLocalPackedInt(0, 0, 5, 3, 40, 31)
+        assert local.shape == (31, 40)
+        hits = cache.getStats()['hits']
+        again = image.renderLocalPackedInt(0, 0, 5, 3, 40, 31)
+        assert (again == local).all()
+        assert cache.getStats()['hits'] == hits + 2
+        out = numpy.zeros((31, 40), dtype=numpy.uint32)
+        assert image.renderLocalPackedInt(0, 0, 5, 3, 40, 31, out=out) is out
+        assert (out == local).all()
+        # Same maths as the server, up to rounding
+        server = image.renderPackedInt(0, 0, 5, 3, 40, 31)
+        for shift in (16, 8, 0):
+            diff = ((local >> shift) & 0xff).astype(int) - \
+                ((server >> shift) & 0xff)
+            assert abs(diff).max() <= 1
+
+    @pytest.mark.parametrize("family", ['linear', 'polynomial',
+                                        'exponential', 'logarithmic'])
+    @pytest.mark.parametrize("noiseReduction", [False, True])
+    def testRenderLocalFamilies(self, gatewaywrapper, family,
+                                noiseReduction):
+        image = self.image
+        image.set_active_channels([1], [[20, 300]], ['FFFFFF'])
+        f = image.getFamilies().get(family)
+        image._re.setQuantizationMap(0, f._obj, 1.8, noiseReduction)
+        channel = image.getChannelSettings()[3][0]
+        assert channel.family == family
+        assert channel.coefficient == 1.8
+        assert channel.noiseReduction == noiseReduction
+        local = image.renderLocalPackedInt(0, 0, 5, 3, 40, 31)
+        server = image.renderPackedInt(0, 0, 5, 3, 40, 31)
+        for shift in (16, 8, 0):
+            diff = ((local >> shift) & 0xff).astype(int) - \
+                ((server >> shift) & 0xff)
+            assert abs(diff).max() <= 1
+
+    def testRenderLocalCompressed(self, gatewaywrapper):
+        image = self.image
+        timings = {}
+        jpeg = image.renderLocalCompressed(0, 0, 5, 3, 40, 31,
+                                           timings=timings)
+        assert set(timings) == set(['render', 'encode'])
+        img_file = Image.open(StringIO(jpeg))
+        assert img_file.format == 'JPEG'
+        assert img_file.size == (40, 31)
+        deflated = image.renderLocalCompressed(0, 0, 5, 3, 40, 31,
+                                               encoding='deflate')
+        argb = image.renderLocalPackedInt(0, 0, 5, 3, 40, 31)
+        raw = zlib.decompress(deflated, -zlib.MAX_WBITS)
+        assert len(raw) == argb.size * 3
+
+    def testRenderLocalThumbnail(self, gatewaywrapper):
+        image = self.image
+        jpeg = image.renderLocalThumbnail(48)
+        img_file = Image.open(StringIO(jpeg))
+        assert img_file.format == 'JPEG'
+        sizeX, sizeY = image.getSizeX(), image.getSizeY()
+        longest = max(sizeX, sizeY)
+        assert max(img_file.size) == 48
+        # Without pyramid, one pixel every step of the plane is rendered
+        png = image.renderLocalThumbnail(48, 0, 0, encoding='png')
+        thumb = numpy.asarray(Image.open(StringIO(png)).convert('RGB'))
+        step = longest // 48
+        argb = image.renderLocalPackedInt(0, 0)[::step, ::step]
+        rows = numpy.arange(thumb.shape[0]) * argb.shape[0] // thumb.shape[0]
+        columns = numpy.arange(thumb.shape[1]) * argb.shape[1] // \
+            thumb.shape[1]
+        argb = argb[rows[:, None], columns]
+        assert (thumb[..., 0] == (argb >> 16) & 0xff).all()
+        assert (thumb[..., 2] == argb & 0xff).all()
+
+    @pytest.mark.parametrize("engines", [1, 2])
+    def testRenderFrames(self, gatewaywrapper, engines):
+        image = self.image
+        frames = [(0, 0, None), (1, 0, (5, 5, 20, 10)), (0, 0, None)]
+        plane = image.renderJpeg(0, 0, compression=0.8)
+        region = image.renderJpegRegion(1, 0, 5, 5, 20, 10, compression=0.8)
+        expected = [plane, region, plane]
+        defaultZ = image._re.getDefaultZ()
+        rendered = list(image.renderFrames(frames, compression=0.8,
+                                           engines=engines))
+        assert rendered == expected
+        assert image._re.getDefaultZ() == defaultZ
+        img_file = Image.open(StringIO(rendered[1]))
+        assert img_file.size == (20, 10)
+
+    def testGetSampledChannelStats(self, gatewaywrapper):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        z = image.getSizeZ() // 2
+        planes = [pixels.getPlane(z, c, 0) for c in range(image.getSizeC())]
+        # Small enough to be read whole
+        stats = image.getSampledChannelStats()
+        for plane, channelStats in zip(planes, stats):
+            assert channelStats.count == plane.size
+            assert channelStats.min == plane.min()
+            assert channelStats.max == plane.max()
+        # Sampled with 4 tiles of 8x8
+        stats = image.getSampledChannelStats(minSamples=200, tileSize=8)
+        tiles = image._getSampleTiles(image.getSizeX(), image.getSizeY(),
+                                      200, 8)
+        assert len(tiles) == 4
+        for plane, channelStats in zip(planes, stats):
+            assert channelStats.count == 4 * 8 * 8
+            assert channelStats.min >= plane.min()
+            assert channelStats.max <= plane.max()
+
+    def testResetDefaultsFromSamples(self, gatewaywrapper):
+        image = self.image
+        stats = image.resetDefaultsFromSamples(save=False)
+        for channel, channelStats in zip(image.getChannels(), stats):
+            assert channel.getWindowStart() == channelStats.min
+            assert channel.getWindowEnd() == channelStats.max
+
+    def testResetDefaultsFromSamplesNoRDef(self, gatewaywrapper):
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            for i in range(2):
+                yield numpy.arange(200, dtype=numpy.uint16).reshape(10, 20) \
+                    * (i + 1)
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testResetDefaultsFromSamplesNoRDef", sizeC=2)
+        try:
+            image = conn.getObject("Image", image.getId())
+            image.resetRDefs()
+            image = conn.getObject("Image", image.getId())
+            stats = image.resetDefaultsFromSamples()
+            # Saved without preparing the rendering engine
+            assert image._re is None
+            assert image._hasRenderingDef()
+            image = conn.getObject("Image", image.getId())
+            channels = image.getChannels()
+            for channel, channelStats in zip(channels, stats):
+                assert channel.getWindowStart() == channelStats.min
+                assert channel.getWindowEnd() == channelStats.max
+            assert [s.max for s in stats] == [199, 398]
+            # Apart from the windows, the server's default settings
+            colors = [c.getColor().getHtml() for c in channels]
+            model = image.getRenderingModel().getValue()
+            image.resetDefaults(save=False)
+            assert [c.getColor().getHtml()
+                    for c in image.getChannels()] == colors
+            assert image.getRenderingModel().getValue() == model
+        finally:
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
     def testRenderBirdsEyeView(self, gatewaywrapper):
         img = self.image.renderBirdsEyeView(None)
         ifile = StringIO(img)
@@ -10,37 +10,17 @@
 
    pytest fixtures used as defined in conftest.py:
    - gatewaywrapper
+   - itest
 
 """
 
 import pytest
-from omero.testlib import ITest
 
 from omero.model import ImageI, ChannelI, LogicalChannelI, LengthI
 from omero.rtypes import rstring, rtime
 from datetime import datetime
 
 
-@pytest.fixture(scope='module')
-def itest(request):
-    """
-    Returns a new L{library.ITest} instance. With attached
-    finalizer so that pytest will clean it up.
-    """
-    class ImageWrapperITest(ITest):
-        """
-        This class emulates py.test scoping semantics when the xunit style
-        is in use.
-        """
-        pass
-    ImageWrapperITest.setup_class()
-
-    def finalizer():
-        ImageWrapperITest.teardown_class()
-    request.addfinalizer(finalizer)
-    return ImageWrapperITest()
-
-
 @pytest.fixture()
 def image(request, gatewaywrapper):
     """Creates an Image."""
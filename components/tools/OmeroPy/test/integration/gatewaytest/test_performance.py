@@ -13,16 +13,28 @@
 
    pytest fixtures used as defined in conftest.py:
    - gatewaywrapper
+   - itest
 
 """
 
 import pytest
 import omero
+import omero.gateway
 import time
 
 from omero.rtypes import rstring, rlong
 
 
+@pytest.fixture()
+def fake_image(itest, gatewaywrapper):
+    """Imports a synthetic 1024x1024x16 uint8 image as the author."""
+    gatewaywrapper.loginAsAuthor()
+    gw = gatewaywrapper.gateway
+    image, = itest.import_fake_file(
+        client=gw.c, sizeX=1024, sizeY=1024, sizeZ=16, pixelType='uint8')
+    return gw.getObject('Image', image.id.val)
+
+
 class TestPerformance (object):
 
     @pytest.mark.broken(ticket="11494")
@@ -98,3 +110,480 @@ class TestPerformance (object):
         # now delete what we have created
         handle = gatewaywrapper.gateway.deleteObjects("Annotation", fileAnnIds)
         gatewaywrapper.waitOnCmd(gatewaywrapper.gateway.c, handle)
+
+    def testGetTilesWindow(self, author_testimg):
+        """
+        testGetTilesWindow: test speed of getTiles() with one synchronous
+        call per tile vv keeping several asynchronous calls in flight
+        """
+        image = author_testimg
+        pixels = image.getPrimaryPixels()
+        sizeX = image.getSizeX()
+        sizeY = image.getSizeY()
+        tileW = tileH = 32
+        zctTileList = []
+        for z in range(image.getSizeZ()):
+            for c in range(image.getSizeC()):
+                for t in range(image.getSizeT()):
+                    for y in range(0, sizeY, tileH):
+                        for x in range(0, sizeX, tileW):
+                            tile = (x, y, min(tileW, sizeX - x),
+                                    min(tileH, sizeY - y))
+                            zctTileList.append((z, c, t, tile))
+
+        startTime = time.time()
+        serial = list(pixels.getTiles(zctTileList))
+        t1 = time.time() - startTime
+        print "getTiles, window=1 for %d tiles = %s secs" \
+            % (len(zctTileList), t1)
+
+        startTime = time.time()
+        pipelined = list(pixels.getTiles(zctTileList, window=8))
+        t2 = time.time() - startTime
+        print "getTiles, window=8 for %d tiles = %s secs" \
+            % (len(zctTileList), t2)
+
+        assert len(serial) == len(pipelined)
+        for a, b in zip(serial, pipelined):
+            assert (a == b).all()
+
+    def testDecodePlane(self, gatewaywrapper, author_testimg):
+        """
+        testDecodePlane: test speed of decoding a raw plane pixel by pixel
+        with struct.unpack vv numpy views used by getTiles()
+        """
+        from struct import unpack
+        import numpy
+
+        image = author_testimg
+        pixels = image.getPrimaryPixels()
+        shape = (image.getSizeY(), image.getSizeX())
+        rps = gatewaywrapper.gateway.createRawPixelsStore()
+        try:
+            rps.setPixelsId(pixels.getId(), True)
+            rawPlane = rps.getPlane(0, 0, 0)
+        finally:
+            rps.close()
+        loops = 100
+
+        startTime = time.time()
+        for i in range(loops):
+            unpacked = unpack('>%dh' % (shape[0] * shape[1]), rawPlane)
+            perPixel = numpy.array(unpacked, numpy.int16).reshape(shape)
+        t1 = time.time() - startTime
+        print "struct.unpack, %d planes = %s secs" % (loops, t1)
+
+        startTime = time.time()
+        for i in range(loops):
+            copied = pixels._toArray(rawPlane, shape)
+        t2 = time.time() - startTime
+        print "_toArray, copy=True, %d planes = %s secs" % (loops, t2)
+
+        startTime = time.time()
+        for i in range(loops):
+            view = pixels._toArray(rawPlane, shape, copy=False)
+        t3 = time.time() - startTime
+        print "_toArray, copy=False, %d planes = %s secs" % (loops, t3)
+
+        assert (perPixel == copied).all()
+        assert (perPixel == view).all()
+
+    def testGetRegions(self, gatewaywrapper, author_testimg):
+        """
+        testGetRegions: test speed of one getRegion() per range vv
+        getRegions() merging neighbouring ranges
+        """
+        image = author_testimg
+        pixels = image.getPrimaryPixels()
+        rowSize = image.getSizeX() * 2
+        rps = gatewaywrapper.gateway.createRawPixelsStore()
+        try:
+            rps.setPixelsId(pixels.getId(), True)
+            # Sample the start of every row of the first planes
+            offsets = []
+            for z in range(image.getSizeZ()):
+                planeOffset = rps.getPlaneOffset(z, 0, 0)
+                for y in range(image.getSizeY()):
+                    offsets.append(planeOffset + y * rowSize)
+            sizes = [16] * len(offsets)
+
+            startTime = time.time()
+            single = [rps.getRegion(size, offset)
+                      for offset, size in zip(offsets, sizes)]
+            t1 = time.time() - startTime
+            print "getRegion for %d ranges = %s secs" % (len(offsets), t1)
+        finally:
+            rps.close()
+
+        startTime = time.time()
+        merged = pixels.getRegions(offsets, sizes, maxGap=rowSize)
+        t2 = time.time() - startTime
+        print "getRegions for %d ranges = %s secs" % (len(offsets), t2)
+
+        assert single == merged
+
+    def testGetHypercubeStep(self, gatewaywrapper, fake_image):
+        """
+        testGetHypercubeStep: test speed of a 1/8 scale getHypercube() done
+        by the server vv reading only the planes and rows needed
+        """
+        image = fake_image
+        pixels = image.getPrimaryPixels()
+        offset = [0, 0, 0, 0, 0]
+        size = [image.getSizeX(), image.getSizeY(), image.getSizeZ(), 1, 1]
+        step = [8, 8, 8, 1, 1]
+        rps = gatewaywrapper.gateway.createRawPixelsStore()
+        try:
+            rps.setPixelsId(pixels.getId(), True)
+            startTime = time.time()
+            rawCube = rps.getHypercube(offset, size, step)
+            t1 = time.time() - startTime
+            print "rawPixelsStore.getHypercube, step 8 = %s secs" % t1
+        finally:
+            rps.close()
+
+        startTime = time.time()
+        cube = pixels.getHypercube(offset, size, step, window=8)
+        t2 = time.time() - startTime
+        print "getHypercube, step 8 = %s secs" % t2
+
+        startTime = time.time()
+        binned = pixels.getHypercube(
+            offset, size, step, binning='mean', window=8)
+        t3 = time.time() - startTime
+        print "getHypercube, mean of 8x8x8 blocks = %s secs" % t3
+
+        assert cube.tostring() == rawCube
+        assert binned.shape == cube.shape
+
+    @pytest.mark.parametrize("sizeC", [1, 3])
+    @pytest.mark.parametrize("pixelType", ['uint8', 'uint16', 'float'])
+    def testRenderPackedIntBands(self, itest, gatewaywrapper, sizeC,
+                                 pixelType):
+        """
+        testRenderPackedIntBands: test speed of renderPackedInt() with one
+        rendering engine vv splitting the plane into bands rendered by four
+        """
+        gatewaywrapper.loginAsAuthor()
+        gw = gatewaywrapper.gateway
+        fake, = itest.import_fake_file(
+            client=gw.c, sizeX=2048, sizeY=2048, sizeC=sizeC,
+            pixelType=pixelType)
+        image = gw.getObject('Image', fake.id.val)
+        # Start the rendering engines before timing
+        image.renderPackedInt(0, 0, 0, 0, 16, 16, bands=4)
+
+        startTime = time.time()
+        single = image.renderPackedInt(0, 0)
+        t1 = time.time() - startTime
+        print "renderPackedInt, %d %s channels, 1 band = %s secs" \
+            % (sizeC, pixelType, t1)
+
+        startTime = time.time()
+        split = image.renderPackedInt(0, 0, bands=4)
+        t2 = time.time() - startTime
+        print "renderPackedInt, %d %s channels, 4 bands = %s secs" \
+            % (sizeC, pixelType, t2)
+
+        assert split.tostring() == single.tostring()
+
+    def testRenderChannelsOut(self, itest, gatewaywrapper):
+        """
+        testRenderChannelsOut: test speed of renderChannels() allocating its
+        arrays for each frame vv rendering into the same output and scratch
+        buffers
+        """
+        from omero.gateway.rendering import RenderBuffers, renderChannels
+        import numpy
+
+        gatewaywrapper.loginAsAuthor()
+        gw = gatewaywrapper.gateway
+        fake, = itest.import_fake_file(
+            client=gw.c, sizeX=2048, sizeY=2048, sizeC=3, pixelType='uint16')
+        image = gw.getObject('Image', fake.id.val)
+        greyscale, cdStart, cdEnd, channels = image.getChannelSettings()
+        pixelsType = image.getPrimaryPixels().getPixelsType().value
+        planes = list(image.getPrimaryPixels().getTiles(
+            [(0, c, 0, None) for c in range(3)]))
+        frames = 10
+
+        startTime = time.time()
+        for i in range(frames):
+            fresh = renderChannels(planes, pixelsType, channels)
+        t1 = time.time() - startTime
+        print "renderChannels, new arrays, %d frames = %s secs" % (frames, t1)
+
+        out = numpy.empty(fresh.shape, dtype=numpy.uint32)
+        buffers = RenderBuffers()
+        renderChannels(planes, pixelsType, channels, out=out, buffers=buffers)
+        allocations = buffers.allocations
+        startTime = time.time()
+        for i in range(frames):
+            reused = renderChannels(planes, pixelsType, channels, out=out,
+                                    buffers=buffers)
+        t2 = time.time() - startTime
+        print "renderChannels, reused buffers, %d frames = %s secs" \
+            % (frames, t2)
+
+        assert (reused == fresh).all()
+        assert buffers.allocations == allocations, \
+            "no array should be allocated once the buffers are set up"
+
+    @pytest.mark.parametrize("encoding", ['jpeg', 'png', 'deflate'])
+    def testEncodeAll(self, fake_image, encoding):
+        """
+        testEncodeAll: test speed of encoding rendered planes one after the
+        other vv in parallel with ImageEncoder.encodeAll(), reporting the
+        render time separately
+        """
+        from omero.gateway.rendering import ImageEncoder
+
+        image = fake_image
+        startTime = time.time()
+        frames = [image.renderLocalPackedInt(z, 0)
+                  for z in range(image.getSizeZ())]
+        t0 = time.time() - startTime
+        print "renderLocalPackedInt for %d frames = %s secs" \
+            % (len(frames), t0)
+
+        encoder = ImageEncoder(encoding, threads=1)
+        startTime = time.time()
+        serial = [encoder.encode(argb) for argb in frames]
+        t1 = time.time() - startTime
+        print "encode, %s, 1 thread, %d frames = %s secs" \
+            % (encoding, len(frames), t1)
+
+        encoder = ImageEncoder(encoding, threads=4)
+        try:
+            startTime = time.time()
+            parallel = encoder.encodeAll(frames)
+            t2 = time.time() - startTime
+        finally:
+            encoder.close()
+        print "encodeAll, %s, 4 threads, %d frames = %s secs" \
+            % (encoding, len(frames), t2)
+
+        assert serial == parallel
+
+    def testProjectionCache(self, gatewaywrapper, fake_image):
+        """
+        testProjectionCache: test speed of rendering a max intensity
+        projection with new rendering settings, projecting the stack each
+        time vv projecting it once into the pixels cache
+        """
+        image = fake_image
+        image.setProjection('intmax')
+        gw = gatewaywrapper.gateway
+        windows = [(0, end) for end in range(100, 260, 20)]
+
+        startTime = time.time()
+        for window in windows:
+            image.set_active_channels([1], [list(window)])
+            uncached = image.renderLocalPackedInt(0, 0)
+        t1 = time.time() - startTime
+        print "renderLocalPackedInt, intmax, %d windows = %s secs" \
+            % (len(windows), t1)
+
+        gw.enablePixelsCache()
+        try:
+            startTime = time.time()
+            for window in windows:
+                image.set_active_channels([1], [list(window)])
+                cached = image.renderLocalPackedInt(0, 0)
+            t2 = time.time() - startTime
+            print "renderLocalPackedInt, intmax, cached, %d windows = %s " \
+                "secs" % (len(windows), t2)
+        finally:
+            gw.disablePixelsCache()
+
+        assert (cached == uncached).all()
+
+    def testRenderingEnginePool(self, gatewaywrapper, author_testimg,
+                                author_testimg_tiny):
+        """
+        testRenderingEnginePool: test speed of browsing images, rendering
+        each once, with a new rendering engine per image vv reusing the
+        engine of the previous image
+        """
+        gw = gatewaywrapper.gateway
+        imageIds = [author_testimg.getId(), author_testimg_tiny.getId()] * 5
+
+        def browse():
+            for imageId in imageIds:
+                image = gw.getObject('Image', imageId)
+                image.renderJpeg(0, 0)
+                image._closeRE()
+
+        startTime = time.time()
+        browse()
+        t1 = time.time() - startTime
+        print "browse %d images, new engines = %s secs" % (len(imageIds), t1)
+
+        pool = gw.enableRenderingEnginePool()
+        try:
+            startTime = time.time()
+            browse()
+            t2 = time.time() - startTime
+            print "browse %d images, pooled engines = %s secs" \
+                % (len(imageIds), t2)
+            assert pool.getStats()['hits'] == len(imageIds) - 1
+        finally:
+            gw.disableRenderingEnginePool()
+
+    def testResetDefaultsFromSamples(self, itest, gatewaywrapper):
+        """
+        testResetDefaultsFromSamples: test speed of resetDefaults() on the
+        server, from the channel statistics of the import, vv sampling tiles
+        of a big plane
+        """
+        gatewaywrapper.loginAsAuthor()
+        gw = gatewaywrapper.gateway
+        fake, = itest.import_fake_file(
+            client=gw.c, sizeX=3072, sizeY=3072, sizeC=2, pixelType='uint16')
+        image = gw.getObject('Image', fake.id.val)
+        image.getChannels()
+
+        startTime = time.time()
+        image.resetDefaults(save=False)
+        t1 = time.time() - startTime
+        print "resetDefaults, 3072x3072 = %s secs" % t1
+
+        startTime = time.time()
+        stats = image.resetDefaultsFromSamples(save=False)
+        t2 = time.time() - startTime
+        print "resetDefaultsFromSamples, %d pixels = %s secs" \
+            % (stats[0].count, t2)
+
+        assert stats[0].count < 3072 * 3072
+        for channel, channelStats in zip(image.getChannels(), stats):
+            assert channelStats.min >= channel.getWindowMin()
+            assert channelStats.max <= channel.getWindowMax()
+
+    def testRenderLocalThumbnail(self, itest, gatewaywrapper):
+        """
+        testRenderLocalThumbnail: test speed of a 96 pixels thumbnail of a
+        big plane rendered locally from the full resolution plane vv one
+        pixel every step of it
+        """
+        import numpy
+        from omero.gateway.rendering import ImageEncoder
+        gatewaywrapper.loginAsAuthor()
+        gw = gatewaywrapper.gateway
+        fake, = itest.import_fake_file(
+            client=gw.c, sizeX=3072, sizeY=3072, sizeC=2, pixelType='uint16')
+        image = gw.getObject('Image', fake.id.val)
+        image.setActiveChannels([1, 2])
+
+        encoder = ImageEncoder()
+        try:
+            startTime = time.time()
+            argb = image.renderLocalPackedInt(0, 0)
+            rows = numpy.arange(96) * 3072 // 96
+            full = encoder.encode(
+                numpy.ascontiguousarray(argb[rows[:, None], rows]))
+            t1 = time.time() - startTime
+        finally:
+            encoder.close()
+        print "renderLocalPackedInt, 3072x3072, scaled to 96 = %s secs" \
+            % t1
+
+        startTime = time.time()
+        thumb = image.renderLocalThumbnail(96, 0, 0)
+        t2 = time.time() - startTime
+        step = 3072 // 96
+        print "renderLocalThumbnail, 96 = %s secs, %d of %d rows read" \
+            % (t2, 3072 // step, 3072)
+
+        # The same pixels are sampled either way
+        assert full == thumb
+
+    def testThumbnailSetWorkers(self, itest, gatewaywrapper):
+        """
+        testThumbnailSetWorkers: test speed of getThumbnailSet() creating
+        the thumbnails of new images on one thumbnail store vv four, and of
+        the first thumbnail streamed by iterThumbnailSet()
+        """
+        gatewaywrapper.loginAsAuthor()
+        gw = gatewaywrapper.gateway
+
+        def newImageIds(count):
+            return [image.id.val for image in itest.import_fake_file(
+                count, client=gw.c, sizeX=1024, sizeY=1024)]
+
+        imageIds = newImageIds(16)
+        startTime = time.time()
+        serial = gw.getThumbnailSet(imageIds, workers=1)
+        t1 = time.time() - startTime
+        print "getThumbnailSet, 1 worker, %d new thumbnails = %s secs" \
+            % (len(imageIds), t1)
+
+        imageIds = newImageIds(16)
+        startTime = time.time()
+        parallel = gw.getThumbnailSet(imageIds, workers=4)
+        t2 = time.time() - startTime
+        print "getThumbnailSet, 4 workers, %d new thumbnails = %s secs" \
+            % (len(imageIds), t2)
+
+        imageIds = newImageIds(16)
+        startTime = time.time()
+        thumbs = gw.iterThumbnailSet(imageIds, workers=4, chunkSize=1)
+        thumbs.next()
+        t3 = time.time() - startTime
+        thumbs.close()
+        print "iterThumbnailSet, first of %d new thumbnails = %s secs" \
+            % (len(imageIds), t3)
+
+        assert len(serial) == len(parallel) == 16
+
+    def testThumbnailSetGroups(self, itest):
+        """
+        testThumbnailSetGroups: test speed of getThumbnailSet() across all
+        groups for 1000 images spread over 20 groups, with chunks mixing
+        the groups vv chunks split by group
+        """
+        groups = [itest.new_group() for i in range(20)]
+        user = itest.new_user(group=groups[0])
+        itest.add_groups(user, groups[1:])
+        imageIds = []
+        for group in groups:
+            client = itest.new_client(group=group, user=user)
+            imageIds.extend(image.id.val for image in itest.import_fake_file(
+                50, client=client, sizeX=64, sizeY=64))
+        gw = omero.gateway.BlitzGateway(client_obj=client)
+        gw.SERVICE_OPTS.setOmeroGroup(-1)
+        # Create the thumbnails
+        assert len(gw.getThumbnailSet(imageIds)) == 1000
+
+        startTime = time.time()
+        mixed = gw.getThumbnailSet(imageIds, byGroup=False)
+        t1 = time.time() - startTime
+        print "getThumbnailSet, %d images in %d groups, mixed = %s secs" \
+            % (len(imageIds), len(groups), t1)
+
+        startTime = time.time()
+        split = gw.getThumbnailSet(imageIds, byGroup=True)
+        t2 = time.time() - startTime
+        print "getThumbnailSet, %d images in %d groups, by group = %s secs" \
+            % (len(imageIds), len(groups), t2)
+
+        assert mixed == split
+
+    def testRenderFrames(self, author_testimg):
+        """
+        testRenderFrames: test speed of renderJpeg() for each plane of a
+        Z-stack vv renderFrames() keeping several renders in flight
+        """
+        image = author_testimg
+        frames = [(z, 0, None) for z in range(image.getSizeZ())] * 4
+
+        startTime = time.time()
+        single = [image.renderJpeg(z, t) for z, t, region in frames]
+        t1 = time.time() - startTime
+        print "renderJpeg for %d frames = %s secs" % (len(frames), t1)
+
+        startTime = time.time()
+        streamed = list(image.renderFrames(frames, window=4))
+        t2 = time.time() - startTime
+        print "renderFrames for %d frames = %s secs" % (len(frames), t2)
+
+        assert single == streamed
@@ -118,6 +118,269 @@ class TestPixels (object):
         assert str(testTile) == str(croppedPlane), \
             "Tile and croppedPlane not equal"
 
+    def testGetTilesNoCopy(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        zctTileList = [(0, 0, 0, (0, 0, 10, 20)), (1, 0, 0, None)]
+        copies = list(pixels.getTiles(zctTileList))
+        views = list(pixels.getTiles(zctTileList, copy=False))
+        for copied, view in zip(copies, views):
+            assert copied.shape == view.shape
+            assert (copied == view).all()
+            assert copied.flags.writeable
+            assert not view.flags.writeable
+
+    def testGetTilesCached(self, gatewaywrapper):
+        import numpy
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            for i in range(2):
+                yield numpy.arange(200, dtype=numpy.int16).reshape(10, 20)
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testGetTilesCached", sizeZ=2)
+        pixels = image.getPrimaryPixels()
+
+        cache = conn.enablePixelsCache()
+        try:
+            zctTileList = [(0, 0, 0, (0, 0, 5, 5)), (1, 0, 0, None)]
+            first = list(pixels.getTiles(zctTileList))
+            assert cache.getStats()['misses'] == 2
+            assert cache.getStats()['entries'] == 2
+            second = list(pixels.getTiles(zctTileList, window=2))
+            assert cache.getStats()['hits'] == 2
+            for a, b in zip(first, second):
+                assert (a == b).all()
+
+            # Writing through the same connection drops the entries
+            rps = conn.createRawPixelsStore()
+            try:
+                rps.setPixelsId(pixels.getId(), True)
+                rps.setPlane(rps.getPlane(0, 0, 0), 0, 0, 0)
+                assert len(cache) == 0
+                # Tiles cached while an asynchronous write is in flight
+                # are dropped once it is done
+                result = rps.begin_setPlane(rps.getPlane(1, 0, 0), 1, 0, 0)
+                list(pixels.getTiles(zctTileList))
+                rps.end_setPlane(result)
+                assert len(cache) == 0
+            finally:
+                rps.close()
+        finally:
+            conn.disablePixelsCache()
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
+    def testGetRegions(self, gatewaywrapper):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+
+        rps = gatewaywrapper.gateway.createRawPixelsStore()
+        try:
+            rps.setPixelsId(pixels.getId(), True)
+            offsets = [rps.getPlaneOffset(z, 0, 0) for z in range(2)]
+            offsets.append(offsets[0] + 4)
+            sizes = [8, 16, 4]
+            expected = [rps.getRegion(size, offset)
+                        for offset, size in zip(offsets, sizes)]
+        finally:
+            rps.close()
+
+        assert pixels.getRegions(offsets, sizes) == expected
+        assert pixels.getRegions(offsets, sizes, maxGap=1024,
+                                 window=2) == expected
+
+    def testPixelsWriter(self, gatewaywrapper):
+        import numpy
+        from omero.gateway import PixelsWriter
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            for i in range(2):
+                yield numpy.zeros((10, 20), dtype=numpy.uint16)
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testPixelsWriter", sizeC=2)
+        pixels = image.getPrimaryPixels()
+        try:
+            tile = numpy.arange(50, dtype=numpy.uint16).reshape(5, 10)
+            with PixelsWriter(pixels, window=2) as writer:
+                writer.setTile(tile, 0, 0, 0, 10, 5)
+                writer.setTile(numpy.ones((9, 20)) * 7, 0, 1, 0, 0, 1)
+                # The first row of channel 1, starting with two pixels of
+                # value 500, written once like the other pixels
+                row = numpy.array([500, 500] + [7] * 18, dtype='>u2')
+                writer.setRegion(row.tostring(), 2 * 10 * 20)
+                assert writer.getChannelMinMax() == {0: (0, 49),
+                                                     1: (7, 500)}
+                stats = writer.getChannelStats()
+                assert stats[0].count == 50
+                assert stats[0].mean == 24.5
+                assert stats[1].count == 10 * 20
+                assert abs(stats[1].mean - 11.93) < 1e-9
+
+            assert (pixels.getTile(0, 0, 0, (10, 5, 10, 5)) == tile).all()
+            plane = pixels.getPlane(0, 1, 0)
+            assert plane[0, 0] == 500
+            assert plane[9, 19] == 7
+
+            channels = conn.getObject(
+                "Image", image.getId()).getChannels(noRE=True)
+            stats = [c._obj.getStatsInfo() for c in channels]
+            assert stats[0].getGlobalMax().getValue() == 49
+            assert stats[1].getGlobalMin().getValue() == 7
+            assert stats[1].getGlobalMax().getValue() == 500
+        finally:
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
+    def testPixelsWriterTileKeepsRange(self, gatewaywrapper):
+        import numpy
+        from omero.gateway import PixelsWriter
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            yield numpy.arange(200, dtype=numpy.uint16).reshape(10, 20) + 100
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testPixelsWriterTileKeepsRange")
+        try:
+            pixels = image.getPrimaryPixels()
+            with PixelsWriter(pixels) as writer:
+                writer.setTile(numpy.ones((2, 2)) * 150, 0, 0, 0, 0, 0)
+                assert writer.getChannelMinMax() == {0: (150, 150)}
+
+            channel = conn.getObject(
+                "Image", image.getId()).getChannels(noRE=True)[0]
+            stats = channel._obj.getStatsInfo()
+            assert stats.getGlobalMin().getValue() == 100
+            assert stats.getGlobalMax().getValue() == 299
+        finally:
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
+    def testLocalPixels(self, gatewaywrapper):
+        import numpy
+        gatewaywrapper.loginAsAdmin()
+        dataDir = gatewaywrapper.gateway.getConfigService().getConfigValue(
+            'omero.data.dir')
+        gatewaywrapper.loginAsAuthor()
+        conn = gatewaywrapper.gateway
+        if not conn.enableLocalPixels(dataDir):
+            pytest.skip("Binary repository not mounted on this host")
+
+        def planeGen():
+            for i in range(6):
+                yield numpy.arange(200, dtype=numpy.int16).reshape(10, 20) * i
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testLocalPixels", sizeZ=3, sizeC=2)
+        try:
+            pixels = conn.getObject("Image", image.getId()).getPrimaryPixels()
+            assert pixels._getLocalPixels() is not None
+            zctTileList = [(2, 1, 0, (5, 2, 10, 4)), (1, 0, 0, None)]
+            local = list(pixels.getTiles(zctTileList, copy=False))
+            stack = pixels.getStack(1, 0)
+            cube = pixels.getHypercube([1, 1, 0, 0, 0], [19, 9, 3, 2, 1],
+                                       [2, 3, 1, 1, 1])
+            conn.disableLocalPixels()
+            assert pixels._getLocalPixels() is None
+            remote = list(pixels.getTiles(zctTileList))
+            for a, b in zip(local, remote):
+                assert not a.flags.writeable
+                assert (a == b).all()
+            assert (stack == pixels.getStack(1, 0)).all()
+            assert (cube == pixels.getHypercube(
+                [1, 1, 0, 0, 0], [19, 9, 3, 2, 1], [2, 3, 1, 1, 1])).all()
+        finally:
+            conn.disableLocalPixels()
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
+    def testLocalPixelsMissing(self, gatewaywrapper, tmpdir):
+        gatewaywrapper.loginAsAuthor()
+        conn = gatewaywrapper.gateway
+        tmpdir.mkdir('Pixels')
+        assert conn.enableLocalPixels(str(tmpdir))
+        try:
+            pixels = self.image.getPrimaryPixels()
+            assert pixels._getLocalPixels() is None
+            assert pixels._noLocalPixelsDir == str(tmpdir)
+            # The wrapper doesn't look for the file again
+            pixels._openLocalPixels = None
+            assert pixels._getLocalPixels() is None
+        finally:
+            conn.disableLocalPixels()
+
+    def testPixelsWriterResetDefaults(self, gatewaywrapper):
+        import numpy
+        from omero.gateway import PixelsWriter
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            yield numpy.zeros((10, 20), dtype=numpy.uint16)
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testPixelsWriterResetDefaults")
+        try:
+            plane = numpy.arange(200, dtype=numpy.uint16).reshape(10, 20)
+            with PixelsWriter(image.getPrimaryPixels(),
+                              resetDefaults=True) as writer:
+                writer.setPlane(plane + 100, 0, 0, 0)
+
+            image = conn.getObject("Image", image.getId())
+            channel = image.getChannels()[0]
+            assert channel.getWindowStart() == 100
+            assert channel.getWindowEnd() == 299
+        finally:
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
+    @pytest.mark.parametrize("algorithm", ['intmax', 'intmean', 'intsum'])
+    def testGetProjectedPlane(self, algorithm):
+        import numpy
+        pixels = self.image.getPrimaryPixels()
+        stack = pixels.getStack(1, 0)[1:5:2]
+        projected = pixels.getProjectedPlane(1, 0, algorithm, 1, 4, 2,
+                                             window=2)
+        assert projected.dtype == stack.dtype
+        if algorithm == 'intmax':
+            expected = stack.max(axis=0)
+        else:
+            expected = stack.astype(numpy.float64).sum(axis=0)
+            if algorithm == 'intmean':
+                expected /= len(stack)
+            limits = numpy.iinfo(stack.dtype)
+            expected = numpy.clip(numpy.rint(expected), limits.min,
+                                  limits.max)
+        assert (projected == expected).all()
+
+    def testProjectionCache(self, gatewaywrapper):
+        import numpy
+        from omero.gateway import PixelsWriter
+        conn = gatewaywrapper.gateway
+
+        def planeGen():
+            for i in range(3):
+                yield numpy.ones((10, 20), dtype=numpy.uint16) * i
+        image = conn.createImageFromNumpySeq(
+            planeGen(), "testProjectionCache", sizeZ=3)
+        cache = conn.enablePixelsCache()
+        try:
+            pixels = image.getPrimaryPixels()
+            assert (pixels.getProjectedPlane() == 2).all()
+            # Only the projection, not the planes of the stack
+            assert len(cache) == 1
+            misses = cache.getStats()['misses']
+            cached = pixels.getProjectedPlane(copy=False)
+            assert not cached.flags.writeable
+            assert (cached == 2).all()
+            assert cache.getStats()['misses'] == misses
+            with PixelsWriter(pixels) as writer:
+                writer.setPlane(numpy.ones((10, 20)) * 9, 1, 0, 0)
+            assert (pixels.getProjectedPlane() == 9).all()
+
+            image = conn.getObject("Image", image.getId())
+            image.setProjection('intmax')
+            projected = image.renderLocalPackedInt(0, 0)
+            image.setProjection('normal')
+            assert (projected == image.renderLocalPackedInt(1, 0)).all()
+        finally:
+            conn.disablePixelsCache()
+            conn.deleteObjects("Image", [image.getId()], wait=True)
+
     def testGetPlane(self):
         image = self.image
         pixels = image.getPrimaryPixels()
@@ -161,6 +424,80 @@ class TestPixels (object):
         firstPlane = pixels.getPlane(0, 0, 0)
         assert plane[0][0] == firstPlane[0][0]
 
+    def testGetStack(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        sizeZ = image.getSizeZ()
+
+        stack = pixels.getStack(theC=0, theT=0)
+        assert stack.shape == (sizeZ, image.getSizeY(), image.getSizeX())
+        planes = list(pixels.getPlanes([(z, 0, 0) for z in range(sizeZ)]))
+        for z in range(sizeZ):
+            assert (stack[z] == planes[z]).all()
+
+        # Decode into the same buffer again
+        reused = pixels.getStack(theC=0, theT=0, out=stack)
+        assert reused is stack
+        assert (reused[0] == planes[0]).all()
+
+    def testGetHypercube(self):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        sizeZ = image.getSizeZ()
+
+        offset = [0, 0, 0, 0, 0]
+        size = [10, 6, sizeZ, 1, 1]
+        cube = pixels.getHypercube(offset, size)
+        assert cube.shape == (1, 1, sizeZ, 6, 10)
+        for z in range(sizeZ):
+            plane = pixels.getPlane(z, 0, 0)
+            assert (cube[0, 0, z] == plane[0:6, 0:10]).all()
+
+        with pytest.raises(ValueError):
+            pixels.getHypercube(offset, size, out=cube[0])
+
+    @pytest.mark.parametrize("window", [1, 4])
+    def testGetHypercubeStep(self, window):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        sizeX = image.getSizeX()
+        sizeZ = image.getSizeZ()
+        full = pixels.getHypercube([0, 0, 0, 0, 0], [sizeX, 20, sizeZ, 2, 1])
+
+        # Rows are read for a big step in Y, a tile for a small one
+        for step in ([3, 8, 2, 1, 1], [2, 1, 2, 2, 1]):
+            cube = pixels.getHypercube(
+                [1, 2, 0, 0, 0], [sizeX - 1, 18, sizeZ, 2, 1], step,
+                window=window)
+            expected = full[:, ::step[3], ::step[2], 2::step[1], 1::step[0]]
+            assert cube.shape == expected.shape
+            assert (cube == expected).all()
+
+        with pytest.raises(ValueError):
+            pixels.getHypercube([0, 0, 0, 0, 0], [4, 4, 1, 1, 1],
+                                binning='median')
+
+    @pytest.mark.parametrize("binning", ['mean', 'max'])
+    def testGetHypercubeBinning(self, binning):
+        image = self.image
+        pixels = image.getPrimaryPixels()
+        sizeZ = image.getSizeZ()
+        size = [10, 7, sizeZ, 1, 1]
+        step = [4, 4, 2, 1, 1]
+        full = pixels.getHypercube([0, 0, 0, 0, 0], size)
+        cube = pixels.getHypercube(
+            [0, 0, 0, 0, 0], size, step, binning=binning, window=4)
+        assert cube.shape == (1, 1, len(range(0, sizeZ, 2)), 2, 3)
+        for zi, z in enumerate(range(0, sizeZ, 2)):
+            for yi, y in enumerate(range(0, 7, 4)):
+                for xi, x in enumerate(range(0, 10, 4)):
+                    block = full[0, 0, z:z + 2, y:y + 4, x:x + 4]
+                    if binning == 'mean':
+                        assert abs(cube[0, 0, zi, yi, xi] -
+                                   block.mean()) < 1e-6
+                    else:
+                        assert cube[0, 0, zi, yi, xi] == block.max()
+
     def testGetPlanesExceptionOnGetPlane(self):
         """
         Tests exception handling in the gateway.getPlanes generator.
@@ -264,6 +601,34 @@ class TestPixels (object):
         services = gatewaywrapper.gateway.c.getStatefulServices()
         assert len(services) == current_count
 
+    def testGetTiledHistogram(self, gatewaywrapper):
+        """
+        Tests histograms streamed from tiles count every pixel once
+        """
+        image = self.image
+        sizeX = image.getSizeX()
+        sizeY = image.getSizeY()
+        channels = [0, 1]
+        binSize = 100
+
+        current_services = gatewaywrapper.gateway.c.getStatefulServices()
+        current_count = len(current_services)
+
+        for globalRange in (True, False):
+            histogram = image.getHistogram(
+                channels, binSize, globalRange=globalRange, tiled=True)
+            assert sorted(histogram.keys()) == channels
+            for c in channels:
+                assert len(histogram[c]) == binSize
+                assert sum(histogram[c]) == sizeX * sizeY
+
+        # Sampling a single tile
+        histogram = image.getHistogram(channels, binSize, maxTiles=1)
+        assert 0 < sum(histogram[0]) <= sizeX * sizeY
+
+        services = gatewaywrapper.gateway.c.getStatefulServices()
+        assert len(services) == current_count
+
 
 class MockRawPixelsStore(object):
 
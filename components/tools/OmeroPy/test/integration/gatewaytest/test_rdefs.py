@@ -228,6 +228,48 @@ class TestRDefs (object):
         g = gatewaywrapper.gateway
         assert not g._assert_unregistered("testBatchCopy")
 
+    def testRenderingSettingsInSet(self, gatewaywrapper):
+        """
+        tests that rendering settings can be set on the images of a
+        container in chunks, with progress
+        """
+        import numpy
+        from omero.gateway import DatasetWrapper
+        conn = gatewaywrapper.gateway
+        dataset = DatasetWrapper(conn, omero.model.DatasetI())
+        dataset.setName('testRenderingSettingsInSet')
+        dataset.save()
+
+        def planeGen():
+            yield numpy.arange(200, dtype=numpy.uint8).reshape(10, 20)
+        imageIds = sorted(
+            conn.createImageFromNumpySeq(
+                planeGen(), "testRenderingSettingsInSet",
+                dataset=dataset).getId()
+            for i in range(5))
+        try:
+            progress = list(conn.iterRenderingSettingsInSet(
+                'resetDefaultsInSet', 'dataset', [dataset.getId()],
+                chunkSize=2, window=2))
+            assert [(done, total) for done, total, rv in progress] == \
+                [(2, 5), (4, 5), (5, 5)]
+            assert sorted(sum((rv for d, t, rv in progress), [])) == \
+                imageIds
+
+            progress = list(conn.iterRenderingSettingsInSet(
+                'applySettingsToSet', 'Image', imageIds,
+                fromid=imageIds[0], chunkSize=3))
+            assert len(progress) == 2
+            applied = sum((rv[True] for d, t, rv in progress), [])
+            assert sorted(applied) == imageIds[1:]
+
+            with pytest.raises(AttributeError):
+                conn.iterRenderingSettingsInSet(
+                    'deleteSettingsInSet', 'Image', imageIds).next()
+        finally:
+            conn.deleteObjects("Dataset", [dataset.getId()],
+                               deleteChildren=True, wait=True)
+
     def testGroupBasedPermissions(self, gatewaywrapper):
         """
         Test that images belonging to experimenters on collaborative rw group
@@ -602,3 +644,55 @@ class TestRDefs (object):
         assert image._re is None
         g = gatewaywrapper.gateway
         assert not g._assert_unregistered("testCloseRE")
+
+    def testRenderingEnginePool(self, gatewaywrapper, author_testimg_tiny):
+        """
+        Tests that the rendering engine of an image is reused by the next
+        image when the pool is enabled
+        """
+        g = gatewaywrapper.gateway
+        image = gatewaywrapper.getTestImage()
+        expected = image.renderJpeg(0, 0)
+        image._closeRE()
+        pool = g.enableRenderingEnginePool(maxIdle=1)
+        try:
+            tiny = author_testimg_tiny
+            tiny.renderJpeg(0, 0)
+            re = tiny._re
+            tiny._closeRE()
+            assert tiny._re is None
+            assert len(pool) == 1
+            image = gatewaywrapper.getTestImage()
+            assert image.renderJpeg(0, 0) == expected
+            assert image._re is re
+            assert pool.getStats()['hits'] == 1
+            image._closeRE(reuse=False)
+            assert len(pool) == 0
+        finally:
+            g.disableRenderingEnginePool()
+        assert not g._assert_unregistered("testRenderingEnginePool")
+
+    def testRenderingEnginePoolCompression(self, gatewaywrapper,
+                                           author_testimg_tiny):
+        """
+        Tests that a pooled engine renders the next image with the default
+        compression level, not the one set for the previous image
+        """
+        g = gatewaywrapper.gateway
+        pool = g.enableRenderingEnginePool(maxIdle=1)
+        try:
+            tiny = author_testimg_tiny
+            assert tiny._prepareRenderingEngine()
+            default = tiny._re.getCompressionLevel()
+            tiny.renderJpeg(0, 0, compression=0.1)
+            re = tiny._re
+            assert abs(re.getCompressionLevel() - 0.1) < 1e-6
+            tiny._closeRE()
+            image = gatewaywrapper.getTestImage()
+            assert image._prepareRenderingEngine()
+            assert image._re is re
+            assert image._re.getCompressionLevel() == default
+            image._closeRE()
+        finally:
+            g.disableRenderingEnginePool()
+        assert len(pool) == 0
@@ -0,0 +1,306 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+#
+# Copyright (C) 2019 University of Dundee & Open Microscopy Environment.
+# All rights reserved.
+#
+# This program is free software; you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation; either version 2 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License along
+# with this program; if not, write to the Free Software Foundation, Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+"""Gateway tests - client side rendering helpers."""
+
+import os
+import zlib
+import numpy
+import pytest
+from cStringIO import StringIO
+
+from omero.gateway.rendering import parseLut, LutRegistry
+from omero.gateway.rendering import ChannelSettings, QuantumMapCache
+from omero.gateway.rendering import quantize, renderChannels
+from omero.gateway.rendering import ImageEncoder, RenderBuffers
+
+try:
+    from PIL import Image
+except ImportError:
+    import Image
+
+
+def binaryLut(offset=0):
+    reds = numpy.arange(256, dtype=numpy.uint8) + offset
+    return reds.tostring() + (reds // 2).tostring() + (255 - reds).tostring()
+
+
+class TestParseLut (object):
+
+    def test_binary(self):
+        table = parseLut(binaryLut())
+        assert table.shape == (256, 3)
+        assert list(table[10]) == [10, 5, 245]
+        assert not table.flags.writeable
+
+    def test_icol_header(self):
+        header = 'ICOL' + '\0' * 28
+        assert (parseLut(header + binaryLut()) == parseLut(binaryLut())).all()
+
+    def test_text(self):
+        lines = ["Index\tRed\tGreen\tBlue"]
+        lines.extend("%d\t%d\t%d\t%d" % (i, i, 0, 255 - i)
+                     for i in range(256))
+        table = parseLut("\n".join(lines))
+        assert list(table[0]) == [0, 0, 255]
+        assert list(table[200]) == [200, 0, 55]
+
+    def test_text_interpolated(self):
+        table = parseLut("0 0 0\n255 255 255\n")
+        assert list(table[0]) == [0, 0, 0]
+        assert list(table[64]) == [127, 127, 127]
+        assert list(table[255]) == [255, 255, 255]
+
+    def test_invalid(self):
+        with pytest.raises(ValueError):
+            parseLut("not a lut")
+
+
+class TestLutRegistry (object):
+
+    @pytest.fixture
+    def root(self, tmpdir):
+        tmpdir.join('fire.lut').write(binaryLut(), mode='wb')
+        tmpdir.mkdir('janelia').join('pup.lut').write(
+            binaryLut(1), mode='wb')
+        return tmpdir
+
+    def test_hits(self, root):
+        registry = LutRegistry(str(root))
+        fire = registry.getLut('fire.lut')
+        assert list(fire[3]) == [3, 1, 252]
+        assert registry.getLut('fire.lut') is fire
+        stats = registry.getStats()
+        assert stats['hits'] == 1
+        assert stats['misses'] == 1
+        assert stats['loads'] == 1
+        assert stats['entries'] == 1
+
+    def test_subdirectory(self, root):
+        registry = LutRegistry(str(root))
+        pup = registry.getLut('pup.lut')
+        assert list(pup[0]) == [1, 0, 254]
+        assert (registry.getLut('janelia/pup.lut') == pup).all()
+
+    def test_missing(self, root):
+        registry = LutRegistry(str(root))
+        assert registry.getLut('missing.lut') is None
+        assert LutRegistry().getLut('fire.lut') is None
+
+    def test_missing_cached(self, root):
+        registry = LutRegistry(str(root))
+        assert registry.getLut('missing.lut') is None
+        root.join('missing.lut').write(binaryLut(), mode='wb')
+        # Not searched for again until checkInterval has passed
+        assert registry.getLut('missing.lut') is None
+        stats = registry.getStats()
+        assert stats['misses'] == 1
+        assert stats['hits'] == 1
+        assert stats['missing'] == 1
+        registry.checkInterval = 0
+        assert registry.getLut('missing.lut') is not None
+        assert registry.getStats()['missing'] == 0
+
+    def test_reload(self, root):
+        registry = LutRegistry(str(root), checkInterval=0)
+        registry.getLut('fire.lut')
+        path = str(root.join('fire.lut'))
+        root.join('fire.lut').write(binaryLut(2), mode='wb')
+        mtime = os.stat(path).st_mtime + 10
+        os.utime(path, (mtime, mtime))
+        assert list(registry.getLut('fire.lut')[0]) == [2, 1, 253]
+        assert registry.getStats()['reloads'] == 1
+
+
+class TestQuantize (object):
+
+    def test_linear(self):
+        cache = QuantumMapCache()
+        data = numpy.array([[0, 50], [150, 250]], dtype=numpy.uint16)
+        q = quantize(data, 'uint16', ChannelSettings(100, 200), cache=cache)
+        assert q.dtype == numpy.uint8
+        assert q.tolist() == [[0, 0], [128, 255]]
+        identity = numpy.arange(256, dtype=numpy.uint8)
+        q = quantize(identity, 'uint8', ChannelSettings(0, 255), cache=cache)
+        assert (q == identity).all()
+
+    def test_signed(self):
+        data = numpy.array([-128, 0, 127], dtype='>i1')
+        q = quantize(data, 'int8', ChannelSettings(-128, 127),
+                     cache=QuantumMapCache())
+        assert q.tolist() == [0, 128, 255]
+
+    def test_reverse_codomain(self):
+        data = numpy.array([0, 255], dtype=numpy.uint8)
+        settings = ChannelSettings(0, 255, reverse=True)
+        q = quantize(data, 'uint8', settings, cdStart=10, cdEnd=20,
+                     cache=QuantumMapCache())
+        assert q.tolist() == [20, 10]
+
+    def test_float(self):
+        data = numpy.array([0.5, 1.0, 2.0])
+        cache = QuantumMapCache()
+        q = quantize(data, 'float', ChannelSettings(0.5, 1.5), cache=cache)
+        assert q.tolist() == [0, 128, 255]
+        assert len(cache) == 0
+
+    def test_families(self):
+        data = numpy.arange(256, dtype=numpy.uint8)
+        cache = QuantumMapCache()
+        for family in ('polynomial', 'exponential', 'logarithmic'):
+            settings = ChannelSettings(0, 255, family, 2.0)
+            q = quantize(data, 'uint8', settings, cache=cache)
+            assert q[0] == 0
+            assert q[255] == 255
+            assert (numpy.diff(q.astype(int)) >= 0).all()
+
+    def test_family_of_raw_values(self):
+        data = numpy.array([100, 150, 200], dtype=numpy.uint16)
+        settings = ChannelSettings(100, 200, 'polynomial', 2.0)
+        q = quantize(data, 'uint16', settings, cache=QuantumMapCache())
+        # (150^2 - 100^2) / (200^2 - 100^2) * 255 = 106.25
+        assert q.tolist() == [0, 106, 255]
+
+    def test_noise_reduction(self):
+        data = numpy.array([5, 10, 50, 90, 95], dtype=numpy.uint8)
+        settings = ChannelSettings(0, 100, noiseReduction=True)
+        q = quantize(data, 'uint8', settings, cache=QuantumMapCache())
+        assert q.tolist() == [0, 0, 128, 255, 255]
+
+    def test_cache(self):
+        cache = QuantumMapCache(maxEntries=1)
+        data = numpy.arange(10, dtype=numpy.uint16)
+        quantize(data, 'uint16', ChannelSettings(0, 9), cache=cache)
+        quantize(data, 'uint16', ChannelSettings(0, 9), cache=cache)
+        stats = cache.getStats()
+        assert stats['hits'] == 1
+        assert stats['misses'] == 1
+        assert stats['bytes'] == 2 ** 16
+        quantize(data, 'uint16', ChannelSettings(0, 10), cache=cache)
+        stats = cache.getStats()
+        assert stats['misses'] == 2
+        assert stats['evictions'] == 1
+        assert stats['entries'] == 1
+
+
+class TestRenderChannels (object):
+
+    def test_colours(self):
+        red = numpy.array([[255, 0]], dtype=numpy.uint8)
+        green = numpy.array([[255, 255]], dtype=numpy.uint8)
+        channels = [ChannelSettings(0, 255, rgba=(255, 0, 0, 255)),
+                    ChannelSettings(0, 255, rgba=(0, 255, 0, 255))]
+        argb = renderChannels([red, green], 'uint8', channels,
+                              cache=QuantumMapCache())
+        assert argb.dtype == numpy.uint32
+        assert argb.tolist() == [[0xffffff00, 0xff00ff00]]
+
+    def test_inactive_and_greyscale(self):
+        plane = numpy.array([[0, 128]], dtype=numpy.uint8)
+        channels = [ChannelSettings(0, 255, active=False),
+                    ChannelSettings(0, 255, rgba=(0, 0, 255, 255))]
+        argb = renderChannels([None, plane], 'uint8', channels,
+                              cache=QuantumMapCache())
+        assert argb.tolist() == [[0xff000000, 0xff000080]]
+        argb = renderChannels([None, plane], 'uint8', channels,
+                              greyscale=True, cache=QuantumMapCache())
+        assert argb.tolist() == [[0xff000000, 0xff808080]]
+
+    def test_lut(self):
+        plane = numpy.array([[10]], dtype=numpy.uint8)
+        channels = [ChannelSettings(0, 255, lut=parseLut(binaryLut()))]
+        argb = renderChannels([plane], 'uint8', channels,
+                              cache=QuantumMapCache())
+        assert argb.tolist() == [[0xff0a05f5]]
+
+    def test_out(self):
+        plane = numpy.arange(-8, 8, dtype='>i2').reshape(4, 4)
+        channels = [ChannelSettings(-8, 7, rgba=(255, 128, 0, 255))]
+        cache = QuantumMapCache()
+        expected = renderChannels([plane], 'int16', channels, cache=cache)
+        out = numpy.zeros((4, 4), dtype=numpy.uint32)
+        buffers = RenderBuffers()
+        for i in range(3):
+            argb = renderChannels([plane], 'int16', channels, cache=cache,
+                                  out=out, buffers=buffers)
+            assert argb is out
+            assert (out == expected).all()
+            if i == 0:
+                allocations = buffers.allocations
+        assert buffers.allocations == allocations
+        with pytest.raises(ValueError):
+            renderChannels([plane], 'int16', channels, cache=cache,
+                           out=numpy.zeros((4, 5), dtype=numpy.uint32))
+        with pytest.raises(ValueError):
+            renderChannels([plane], 'int16', channels, cache=cache,
+                           out=numpy.zeros((4, 4), dtype=numpy.int64))
+
+
+class TestImageEncoder (object):
+
+    @pytest.fixture
+    def argb(self):
+        red = numpy.arange(300 * 200, dtype=numpy.uint32) % 256
+        return (0xff000000 | red << 16 | (255 - red)).reshape(300, 200)
+
+    def rgb(self, argb):
+        return numpy.dstack([(argb >> 16) & 0xff, (argb >> 8) & 0xff,
+                             argb & 0xff]).astype(numpy.uint8)
+
+    @pytest.mark.parametrize("threads", [1, 4])
+    def test_deflate(self, argb, threads):
+        encoder = ImageEncoder('deflate', threads=threads, stripHeight=64)
+        try:
+            data = encoder.encode(argb)
+            # Twice, reusing the buffers of the thread
+            assert encoder.encode(argb) == data
+        finally:
+            encoder.close()
+        raw = zlib.decompress(data, -zlib.MAX_WBITS)
+        assert raw == self.rgb(argb).tostring()
+        stats = encoder.getStats()
+        assert stats['frames'] == 2
+        assert stats['bytes'] == 2 * len(data)
+
+    def test_png(self, argb):
+        encoder = ImageEncoder('png')
+        image = Image.open(StringIO(encoder.encode(argb)))
+        assert image.format == 'PNG'
+        assert image.size == (200, 300)
+        decoded = numpy.asarray(image.convert('RGB'), dtype=numpy.uint8)
+        assert (decoded == self.rgb(argb)).all()
+
+    def test_jpeg_all(self, argb):
+        encoder = ImageEncoder('jpeg', quality=0.8, threads=2)
+        try:
+            frames = encoder.encodeAll([argb, argb[:10, :20], argb])
+        finally:
+            encoder.close()
+        assert len(frames) == 3
+        assert frames[0] == frames[2]
+        image = Image.open(StringIO(frames[1]))
+        assert image.format == 'JPEG'
+        assert image.size == (20, 10)
+        assert encoder.getStats()['frames'] == 3
+
+    def test_invalid(self):
+        with pytest.raises(ValueError):
+            ImageEncoder('gif')
@@ -12,6 +12,10 @@
 from omero.gateway.utils import ServiceOptsDict
 from omero.gateway.utils import toBoolean
 from omero.gateway.utils import propertiesToDict
+from omero.gateway.utils import PixelsCache
+from omero.gateway.utils import IdlePool
+from omero.gateway.utils import coalesceRanges
+from omero.gateway.utils import ChannelStats
 import pytest
 
 
@@ -304,3 +308,152 @@ class TestHelpers (object):
 
         assert dictprop['str']['1']['enabled'] == 't'
         assert dictprop['str']['2']['enabled'] == 'f'
+
+
+class TestPixelsCache (object):
+
+    def test_getAndPut(self):
+        cache = PixelsCache(100)
+        key = (1L, None, 0, 0, 0, None)
+        assert cache.get(key) is None
+        cache.put(key, 'a' * 10)
+        assert key in cache
+        assert cache.get(key) == 'a' * 10
+        stats = cache.getStats()
+        assert stats['hits'] == 1
+        assert stats['misses'] == 1
+        assert stats['hitRatio'] == 0.5
+        assert stats['entries'] == 1
+        assert stats['bytes'] == 10
+
+    def test_evictLeastRecentlyUsed(self):
+        cache = PixelsCache(30)
+        for i in range(3):
+            cache.put((1L, i), 'a' * 10)
+        # Use the first entry so that the second one is evicted
+        cache.get((1L, 0))
+        cache.put((1L, 3), 'a' * 10)
+        assert (1L, 0) in cache
+        assert (1L, 1) not in cache
+        assert (1L, 2) in cache
+        assert (1L, 3) in cache
+        assert cache.getStats()['evictions'] == 1
+        assert cache.getStats()['bytes'] == 30
+
+    def test_tooBig(self):
+        cache = PixelsCache(10)
+        cache.put((1L, 0), 'a' * 11)
+        assert len(cache) == 0
+
+    def test_replace(self):
+        cache = PixelsCache(30)
+        cache.put((1L, 0), 'a' * 10)
+        cache.put((1L, 0), 'b' * 20)
+        assert cache.get((1L, 0)) == 'b' * 20
+        assert cache.getStats()['bytes'] == 20
+
+    def test_invalidate(self):
+        cache = PixelsCache(100)
+        cache.put((1L, 0), 'a' * 10)
+        cache.put((1L, 1), 'a' * 10)
+        cache.put((2L, 0), 'a' * 10)
+        cache.invalidate(1L)
+        assert len(cache) == 1
+        assert (2L, 0) in cache
+        assert cache.getStats()['bytes'] == 10
+        cache.clear()
+        assert len(cache) == 0
+        assert cache.getStats()['bytes'] == 0
+
+
+class TestIdlePool (object):
+
+    def test_reuse(self):
+        closed = []
+        pool = IdlePool(2, closed.append)
+        assert pool.get() is None
+        pool.put('a')
+        pool.put('b')
+        pool.put('c')
+        assert closed == ['c']
+        assert pool.get() == 'b'
+        assert pool.get() == 'a'
+        assert pool.get() is None
+        stats = pool.getStats()
+        assert stats['hits'] == 2
+        assert stats['misses'] == 2
+        assert stats['idle'] == 0
+
+    def test_clear(self):
+        closed = []
+
+        def close(obj):
+            closed.append(obj)
+            raise Exception("close failed")
+        pool = IdlePool(4, close)
+        pool.put('a')
+        pool.put('b')
+        pool.clear()
+        assert closed == ['a', 'b']
+        assert len(pool) == 0
+
+
+class TestCoalesceRanges (object):
+
+    def test_adjacent(self):
+        reads = coalesceRanges([100, 0, 10, 50], [10, 10, 5, 10])
+        assert reads == [(0, 15, [(1, 0), (2, 10)]),
+                         (50, 10, [(3, 0)]),
+                         (100, 10, [(0, 0)])]
+
+    def test_maxGap(self):
+        reads = coalesceRanges([100, 0, 10, 50], [10, 10, 5, 10], maxGap=40)
+        assert reads == [(0, 110, [(1, 0), (2, 10), (3, 50), (0, 100)])]
+
+    def test_overlapping(self):
+        reads = coalesceRanges([0, 0, 5], [10, 4, 3])
+        assert reads == [(0, 10, [(0, 0), (1, 0), (2, 5)])]
+
+    def test_maxSize(self):
+        reads = coalesceRanges([0, 10, 20], [10, 10, 10], maxSize=20)
+        assert reads == [(0, 20, [(0, 0), (1, 10)]), (20, 10, [(2, 0)])]
+
+    def test_empty(self):
+        assert coalesceRanges([], []) == []
+
+
+class TestChannelStats (object):
+
+    def test_update(self):
+        import numpy
+        values = numpy.array([3, 7, 1, 9, 4, 4, 100, 2], dtype='>u2')
+        stats = ChannelStats()
+        stats.update(values[:3])
+        stats.update(values[3:3])
+        stats.update(values[3:])
+        assert stats.count == 8
+        assert stats.min == 1
+        assert stats.max == 100
+        assert numpy.isclose(stats.mean, values.mean())
+        assert numpy.isclose(stats.getVariance(), values.var())
+        assert numpy.isclose(stats.getStdDev(), values.std())
+
+    def test_merge(self):
+        import numpy
+        values = numpy.arange(1000, dtype=numpy.float64) ** 2
+        stats = ChannelStats()
+        for block in numpy.split(values, 8):
+            blockStats = ChannelStats()
+            blockStats.update(block)
+            stats.merge(blockStats)
+        assert stats.count == 1000
+        assert numpy.isclose(stats.mean, values.mean())
+        assert numpy.isclose(stats.getVariance(), values.var())
+
+    def test_empty(self):
+        stats = ChannelStats()
+        stats.merge(ChannelStats())
+        assert stats.count == 0
+        assert stats.min is None
+        assert stats.getVariance() is None
+        assert stats.getStdDev() is None